@@ -0,0 +1,101 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Prints change of each benchmark between two JMH JSON results, e.g. of two versions, marking regressions.
+ * Throughput should not go down, and allocation per op (if GC profiler reports it) should not go up.
+ *
+ * Usage: CompareResults baseline.json current.json [threshold percent, default 10].
+ * Exits with 1 if there are regressions.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class CompareResults {
+	private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareResults baseline.json current.json [threshold%]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.1;
+
+		Map<String, JsonNode> baseline = read(new File(args[0]));
+		Map<String, JsonNode> current = read(new File(args[1]));
+
+		int regressions = 0;
+		for(Map.Entry<String, JsonNode> entry : current.entrySet()) {
+			JsonNode before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.printf("%-70s new%n", entry.getKey());
+				continue;
+			}
+			JsonNode after = entry.getValue();
+
+			double scoreChange = change(score(before), score(after));
+			boolean regressed = scoreChange < -threshold;
+			String line = String.format("%-70s %+7.1f%% %s", entry.getKey(), scoreChange * 100,
+					after.path("primaryMetric").path("scoreUnit").asText());
+
+			Double allocationBefore = allocation(before);
+			Double allocationAfter = allocation(after);
+			if (allocationBefore != null && allocationAfter != null) {
+				double allocationChange = change(allocationBefore, allocationAfter);
+				regressed |= allocationChange > threshold;
+				line += String.format(", alloc %+7.1f%% B/op", allocationChange * 100);
+			}
+
+			if (regressed) {
+				regressions++;
+				line += "  REGRESSION";
+			}
+			System.out.println(line);
+		}
+
+		System.out.printf("%d regressions over %.0f%%%n", regressions, threshold * 100);
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return Benchmark with params -> its result.
+	 */
+	private static Map<String, JsonNode> read(File file) throws IOException {
+		Map<String, JsonNode> result = Maps.newTreeMap();
+		for(JsonNode benchmark : new ObjectMapper().readTree(file)) {
+			String name = benchmark.get("benchmark").asText().replace("me.lazerka.db.", "");
+			JsonNode params = benchmark.path("params");
+			if (params.size() > 0) {
+				name += params.toString();
+			}
+			result.put(name, benchmark);
+		}
+		return result;
+	}
+
+	private static double score(JsonNode benchmark) {
+		return benchmark.path("primaryMetric").path("score").asDouble();
+	}
+
+	private static Double allocation(JsonNode benchmark) {
+		Iterator<Map.Entry<String, JsonNode>> metrics = benchmark.path("secondaryMetrics").fields();
+		while (metrics.hasNext()) {
+			Map.Entry<String, JsonNode> metric = metrics.next();
+			if (metric.getKey().endsWith(ALLOCATION)) {
+				return metric.getValue().path("score").asDouble();
+			}
+		}
+		return null;
+	}
+
+	private static double change(double before, double after) {
+		return before == 0 ? 0 : (after - before) / before;
+	}
+}
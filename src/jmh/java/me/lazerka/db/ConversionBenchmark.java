@@ -0,0 +1,57 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entity to {@link Row}, per entity of each {@link Fixtures.Shape}.
+ *
+ * @author Dzmitry Lazerka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+	@Param({"WIDE", "TEXT", "EMBEDDED", "DEEP"})
+	Fixtures.Shape shape;
+
+	private LocalServiceTestHelper environment;
+	private Entity entity;
+
+	@Setup
+	public void setUp() {
+		environment = Fixtures.environment();
+		entity = new Fixtures().entity(shape, 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		environment.tearDown();
+	}
+
+	@Benchmark
+	public Row toRow() {
+		return Row.of(entity, null);
+	}
+
+	@Benchmark
+	public void typeOf(Blackhole blackhole) {
+		for(Object value : entity.getProperties().values()) {
+			blackhole.consume(Row.Value.typeOf(value));
+		}
+	}
+
+	@Benchmark
+	public void format(Blackhole blackhole) {
+		for(Object value : entity.getProperties().values()) {
+			blackhole.consume(Row.Value.format(value));
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic entities for benchmarks, seeded so that every run gets the same ones.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class Fixtures {
+	/** Shapes of entities. */
+	public enum Shape {
+		/** 60 short properties of all common types. */
+		WIDE,
+		/** Few properties and a 64KB Text. */
+		TEXT,
+		/** EmbeddedEntity with nested properties. */
+		EMBEDDED,
+		/** Key with 6 ancestors, and key-valued properties as deep. */
+		DEEP,
+	}
+
+	private final Random random = new Random(42);
+
+	/**
+	 * Keys need an app id, which comes from API environment of current thread.
+	 */
+	static LocalServiceTestHelper environment() {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper();
+		helper.setUp();
+		return helper;
+	}
+
+	List<Entity> entities(Shape shape, int count) {
+		List<Entity> result = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			result.add(entity(shape, i + 1));
+		}
+		return result;
+	}
+
+	Entity entity(Shape shape, long id) {
+		switch (shape) {
+			case WIDE:
+				return wide(id);
+			case TEXT:
+				return text(id);
+			case EMBEDDED:
+				return embedded(id);
+			case DEEP:
+				return deep(id);
+			default:
+				throw new IllegalArgumentException(shape.toString());
+		}
+	}
+
+	private Entity wide(long id) {
+		Entity entity = new Entity("Wide", id);
+		for(int i = 0; i < 10; i++) {
+			entity.setProperty("long" + i, random.nextLong());
+			entity.setProperty("double" + i, random.nextDouble());
+			entity.setProperty("string" + i, randomString(5 + random.nextInt(40)));
+			entity.setProperty("date" + i, new Date(1400000000000L + random.nextInt()));
+			entity.setProperty("bool" + i, random.nextBoolean());
+			entity.setProperty("null" + i, null);
+		}
+		entity.setProperty("geo", new GeoPt(random.nextFloat() * 90, random.nextFloat() * 180));
+		entity.setProperty("user", new User("user" + id + "@example.com", "gmail.com"));
+		entity.setProperty("ref", KeyFactory.createKey("Other", random.nextInt(1000) + 1));
+		return entity;
+	}
+
+	private Entity text(long id) {
+		Entity entity = new Entity("WithText", id);
+		entity.setProperty("title", randomString(30));
+		entity.setProperty("created", new Date(1400000000000L + id));
+		entity.setUnindexedProperty("body", new Text(randomString(64 * 1024)));
+		return entity;
+	}
+
+	private Entity embedded(long id) {
+		EmbeddedEntity address = new EmbeddedEntity();
+		address.setProperty("street", randomString(20));
+		address.setProperty("zip", (long) random.nextInt(100000));
+		EmbeddedEntity profile = new EmbeddedEntity();
+		profile.setProperty("name", randomString(12));
+		profile.setProperty("tags", ImmutableList.of(randomString(5), randomString(8)));
+		profile.setProperty("address", address);
+
+		Entity entity = new Entity("WithEmbedded", id);
+		entity.setProperty("profile", profile);
+		entity.setProperty("score", random.nextDouble());
+		return entity;
+	}
+
+	private Entity deep(long id) {
+		Entity entity = new Entity("Deep", id, deepKey(6));
+		for(int i = 0; i < 5; i++) {
+			entity.setProperty("ref" + i, deepKey(6));
+		}
+		return entity;
+	}
+
+	Key deepKey(int depth) {
+		Key key = null;
+		for(int i = 0; i < depth; i++) {
+			long id = random.nextInt(1000000) + 1;
+			key = key == null ? KeyFactory.createKey("Level" + i, id) : KeyFactory.createKey(key, "Level" + i, id);
+		}
+		return key;
+	}
+
+	private String randomString(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import me.lazerka.db.Row.Value.Type;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of request parameters and imported values.
+ *
+ * @author Dzmitry Lazerka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+	private static final List<String> FILTERS = ImmutableList.of(
+			"age > INTEGER(30)",
+			"created >= DATETIME(2014-05-13T16:53:20.001Z)",
+			"owner = KEY(Level0(12)/Level1(34))");
+
+	private LocalServiceTestHelper environment;
+	private String deepKey;
+	private String shallowKey;
+	private String namedKey;
+	private String webSafeKey;
+	private QueryPlans queryPlans;
+
+	@Setup
+	public void setUp() {
+		environment = Fixtures.environment();
+		Fixtures fixtures = new Fixtures();
+		deepKey = fixtures.deepKey(6).toString();
+		shallowKey = fixtures.deepKey(1).toString();
+		Key named = KeyFactory.createKey(fixtures.deepKey(5), "Named", "some name/with (parentheses)");
+		namedKey = named.toString();
+		webSafeKey = KeyFactory.keyToString(named);
+		queryPlans = new QueryPlans();
+	}
+
+	@TearDown
+	public void tearDown() {
+		environment.tearDown();
+	}
+
+	@Benchmark
+	public Object fromStringInteger() {
+		return Type.INTEGER.fromString("1234567890");
+	}
+
+	@Benchmark
+	public Object fromStringDatetime() {
+		return Type.DATETIME.fromString("2014-05-13T16:53:20.001Z");
+	}
+
+	@Benchmark
+	public Object fromStringKeyShallow() {
+		return Type.KEY.fromString(shallowKey);
+	}
+
+	@Benchmark
+	public Object fromStringKeyDeep() {
+		return Type.KEY.fromString(deepKey);
+	}
+
+	@Benchmark
+	public Object fromStringKeyNamed() {
+		return Type.KEY.fromString(namedKey);
+	}
+
+	@Benchmark
+	public Object fromStringKeyWebSafe() {
+		return Type.KEY.fromString(webSafeKey);
+	}
+
+	@Benchmark
+	public Object fromClass() {
+		return Type.fromClass(Long.class);
+	}
+
+	@Benchmark
+	public Object parseFilter() {
+		return FilterParser.parseFilter(FILTERS.get(2));
+	}
+
+	/** Cached plan, as for repeated requests. */
+	@Benchmark
+	public List<Query> createQuery() {
+		return queryPlans.createQueries("Kind", "", FILTERS, ImmutableList.<String>of());
+	}
+}
@@ -0,0 +1,89 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a page of 100 rows, as /db/entity does it.
+ *
+ * @author Dzmitry Lazerka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	private static final int PAGE_SIZE = 100;
+
+	@Param({"WIDE", "TEXT", "EMBEDDED", "DEEP"})
+	Fixtures.Shape shape;
+
+	private LocalServiceTestHelper environment;
+	private List<Entity> entities;
+	private List<Row> rows;
+
+	// Same as DbServletModule binds.
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+	@Setup
+	public void setUp() {
+		environment = Fixtures.environment();
+		entities = new Fixtures().entities(shape, PAGE_SIZE);
+		rows = new ArrayList<>(PAGE_SIZE);
+		for(Entity entity : entities) {
+			rows.add(Row.of(entity, null));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		environment.tearDown();
+	}
+
+	@Benchmark
+	public byte[] json() throws IOException {
+		return objectMapper.writeValueAsBytes(rows);
+	}
+
+	@Benchmark
+	public byte[] smile() throws IOException {
+		return smileMapper.writeValueAsBytes(rows);
+	}
+
+	/** Conversion included, as columnar doesn't create rows. */
+	@Benchmark
+	public byte[] columnar() throws IOException {
+		ColumnarRows result = new ColumnarRows(PAGE_SIZE);
+		for(Entity entity : entities) {
+			result.add(entity, null);
+		}
+		return objectMapper.writeValueAsBytes(result);
+	}
+
+	/** Same output as {@link #convertAndJson}, without creating rows. */
+	@Benchmark
+	public byte[] direct() throws IOException {
+		return objectMapper.writeValueAsBytes(new EntityJson.Rows(entities, null));
+	}
+
+	/** Conversion included, to compare with {@link #columnar}. */
+	@Benchmark
+	public byte[] convertAndJson() throws IOException {
+		List<Row> result = new ArrayList<>(PAGE_SIZE);
+		for(Entity entity : entities) {
+			result.add(Row.of(entity, null));
+		}
+		return objectMapper.writeValueAsBytes(result);
+	}
+}
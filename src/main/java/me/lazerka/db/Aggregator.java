@@ -0,0 +1,806 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Groups entities of a query by some properties and aggregates others on the server, so that only the result is
+ * sent to client.
+ *
+ * Fetches keys if nothing but rows is counted, whole entities otherwise. Kind is split into key ranges aggregated
+ * concurrently, unless the query has an inequality, which can't be combined with a key range. Branches of a
+ * disjunction are merged within each range, so an entity is aggregated once.
+ *
+ * Each range fills its own {@link Partial}: group key is looked up once per row to get group number, and
+ * aggregates keep their state in primitive arrays by group number. Partials are merged in the end.
+ *
+ * Projection queries are not used, even if all the properties are indexed: they return a row per value of
+ * a multi-valued property, and skip entities that don't have a projected property, so counts and sums would depend
+ * on which one was run. {@link MetadataCatalog} doesn't know which properties are single-valued and always present.
+ * If key ranges fail (e.g. for lack of an index), the query is run again in a single range.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class Aggregator {
+	private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
+
+	/** Like "count", or "sum(price)". */
+	private static final Pattern EXPRESSION = Pattern.compile("(\\w+)(?:\\((.+)\\))?");
+
+	/** Group key of all rows if there's no grouping. */
+	private static final Object ALL = Collections.emptyList();
+
+	public enum Function {
+		/** Rows, or rows where property is not null. */
+		COUNT {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new CountAccumulator(property == null);
+			}
+		},
+		/** Of numbers, integer if all of them are. Other values are skipped. */
+		SUM {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new SumAccumulator(false);
+			}
+		},
+		/** Of numbers. Other values are skipped. */
+		AVG {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new SumAccumulator(true);
+			}
+		},
+		MIN {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new MinMaxAccumulator(false);
+			}
+		},
+		MAX {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new MinMaxAccumulator(true);
+			}
+		},
+		/** Number of distinct non-null values. */
+		DISTINCT {
+			@Override
+			Accumulator accumulator(@Nullable String property) {
+				return new DistinctAccumulator();
+			}
+		};
+
+		abstract Accumulator accumulator(@Nullable String property);
+	}
+
+	private final DatastoreService datastore;
+	private final AsyncDatastoreService asyncDatastore;
+	private final Parallel parallel;
+	private final QueryPlans queryPlans;
+	private final FetchSizer fetchSizer;
+
+	@Inject
+	public Aggregator(
+			DatastoreService datastore,
+			AsyncDatastoreService asyncDatastore,
+			Parallel parallel,
+			QueryPlans queryPlans,
+			FetchSizer fetchSizer
+	) {
+		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
+		this.parallel = parallel;
+		this.queryPlans = queryPlans;
+		this.fetchSizer = fetchSizer;
+	}
+
+	/**
+	 * @param groupBy Properties to group by, none for a single group.
+	 * @param expressions Like "count", "count(owner)", "sum(price)", "avg(price)", "min(created)", "max(created)",
+	 *                    "distinct(owner)", see {@link Function}.
+	 * @param shards Number of key ranges to aggregate concurrently.
+	 * @param maxGroups Aggregation fails if there are more groups, so that memory is bounded.
+	 */
+	public Result aggregate(
+			String kind,
+			String ancestor,
+			List<String> filters,
+			List<String> or,
+			List<String> groupBy,
+			List<String> expressions,
+			int shards,
+			int maxGroups
+	) {
+		long startMs = System.currentTimeMillis();
+		checkArgument(!expressions.isEmpty(), "No aggregates");
+		checkArgument(shards > 0, "shards must be positive");
+
+		List<Aggregate> aggregates = Lists.newArrayListWithCapacity(expressions.size());
+		for(String expression : expressions) {
+			aggregates.add(Aggregate.parse(expression));
+		}
+		Spec spec = new Spec(kind, ancestor, filters, or, groupBy, aggregates, maxGroups);
+
+		List<Query> queries = spec.queries();
+		boolean splittable = !kind.isEmpty() && shards > 1;
+		for(Query q : queries) {
+			splittable &= !MergingIterator.hasInequality(q.getFilter());
+		}
+
+		List<KeyShard> keyShards = splittable
+				? KeyShard.split(datastore, kind, shards)
+				: ImmutableList.of(new KeyShard(null, null));
+		Partial partial;
+		try {
+			partial = aggregate(spec, keyShards);
+		} catch (DatastoreNeedIndexException | IllegalArgumentException e) {
+			if (keyShards.size() == 1) {
+				throw e;
+			}
+			logger.info("Aggregating in a single range: {}", e.getMessage());
+			keyShards = ImmutableList.of(new KeyShard(null, null));
+			partial = aggregate(spec, keyShards);
+		}
+		if (partial.overflow) {
+			throw new IllegalArgumentException("More than " + maxGroups + " groups");
+		}
+
+		Result result = partial.result();
+		result.shards = keyShards.size();
+		result.fetched = queries.get(0).isKeysOnly() ? "keys" : "entities";
+		result.millis = System.currentTimeMillis() - startMs;
+		logger.info("Aggregated {} rows into {} groups in {}ms",
+				result.rows, result.groups.size(), result.millis);
+		return result;
+	}
+
+	private Partial aggregate(final Spec spec, List<KeyShard> keyShards) {
+		List<Callable<Partial>> tasks = Lists.newArrayListWithCapacity(keyShards.size());
+		for(final KeyShard shard : keyShards) {
+			tasks.add(new Callable<Partial>() {
+				@Override
+				public Partial call() {
+					return aggregateShard(spec, shard);
+				}
+			});
+		}
+
+		Partial result = null;
+		for(Partial partial : parallel.invokeAll(tasks, Math.min(keyShards.size(), KeyShard.MAX_SHARDS))) {
+			if (result == null) {
+				result = partial;
+			} else {
+				result.merge(partial);
+			}
+		}
+		return result;
+	}
+
+	private Partial aggregateShard(Spec spec, KeyShard shard) {
+		List<Query> queries = spec.queries();
+		for(Query q : queries) {
+			shard.apply(q);
+		}
+
+		Partial partial = new Partial(spec);
+		Iterator<Entity> iterator = iterate(queries);
+		while (iterator.hasNext()) {
+			if (!partial.add(iterator.next())) {
+				break;
+			}
+		}
+		logger.debug("Shard {}: {} rows", shard, partial.rows);
+		return partial;
+	}
+
+	private Iterator<Entity> iterate(List<Query> queries) {
+		String shape = FetchSizer.shape(queries.get(0));
+		int chunkSize = fetchSizer.chunkSize(shape, FetchSizer.MAX_CHUNK);
+		FetchOptions fetchOptions = withChunkSize(chunkSize).prefetchSize(chunkSize);
+
+		if (queries.size() == 1) {
+			QueryResultIterator<Entity> iterator = datastore.prepare(queries.get(0)).asQueryResultIterator(fetchOptions);
+			return fetchSizer.measure(shape, chunkSize, iterator);
+		}
+
+		List<QueryResultIterator<Entity>> sources = Lists.newArrayListWithCapacity(queries.size());
+		for(Query q : queries) {
+			sources.add(asyncDatastore.prepare(q).asQueryResultIterator(fetchOptions));
+		}
+		return new MergingIterator(queries, sources, Integer.MAX_VALUE);
+	}
+
+	@Nullable
+	private static Object value(Entity entity, String property) {
+		if (property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+			return entity.getKey();
+		}
+		return entity.getProperty(property);
+	}
+
+	/**
+	 * By type first, in datastore order, then by value as datastore stores it: integers, dates (as microseconds)
+	 * and ratings as int64, strings and types stored as strings (Email, Link, ShortBlob etc.) as UTF-8 bytes.
+	 */
+	static int compareValues(@Nullable Object a, @Nullable Object b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		int rankA = rank(a);
+		int result = Integer.compare(rankA, rank(b));
+		if (result != 0) {
+			return result;
+		}
+		Long int64A = int64(a);
+		Long int64B = int64(b);
+		if (int64A != null && int64B != null) {
+			return int64A.compareTo(int64B);
+		}
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof ShortBlob || b instanceof ShortBlob) {
+			byte[] bytesA = bytes(a);
+			byte[] bytesB = bytes(b);
+			if (bytesA != null && bytesB != null) {
+				return UnsignedBytes.lexicographicalComparator().compare(bytesA, bytesB);
+			}
+		}
+		String stringA = string(a);
+		String stringB = string(b);
+		if (stringA != null && stringB != null) {
+			return compareUtf8(stringA, stringB);
+		}
+		if (a.getClass() == b.getClass() && a instanceof Comparable) {
+			@SuppressWarnings("unchecked")
+			Comparable<Object> comparable = (Comparable<Object>) a;
+			return comparable.compareTo(b);
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * @return Value as stored in datastore, if it's stored as int64.
+	 */
+	@Nullable
+	private static Long int64(Object value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime() * 1000;
+		} else if (value instanceof Rating) {
+			return (long) ((Rating) value).getRating();
+		}
+		return null;
+	}
+
+	/**
+	 * @return Value as stored in datastore, if it's stored as a string.
+	 */
+	@Nullable
+	private static String string(Object value) {
+		if (value instanceof String) {
+			return (String) value;
+		} else if (value instanceof Email) {
+			return ((Email) value).getEmail();
+		} else if (value instanceof Link) {
+			return ((Link) value).getValue();
+		} else if (value instanceof Category) {
+			return ((Category) value).getCategory();
+		} else if (value instanceof PhoneNumber) {
+			return ((PhoneNumber) value).getNumber();
+		} else if (value instanceof PostalAddress) {
+			return ((PostalAddress) value).getAddress();
+		} else if (value instanceof IMHandle) {
+			IMHandle handle = (IMHandle) value;
+			return handle.getProtocol() + " " + handle.getAddress();
+		} else if (value instanceof BlobKey) {
+			return ((BlobKey) value).getKeyString();
+		}
+		return null;
+	}
+
+	@Nullable
+	private static byte[] bytes(Object value) {
+		if (value instanceof ShortBlob) {
+			return ((ShortBlob) value).getBytes();
+		}
+		String string = string(value);
+		return string == null ? null : string.getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Same as comparing UTF-8 bytes, which is code point order, unlike {@link String#compareTo} of UTF-16 chars.
+	 */
+	static int compareUtf8(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int codePointA = a.codePointAt(i);
+			int codePointB = b.codePointAt(j);
+			if (codePointA != codePointB) {
+				return Integer.compare(codePointA, codePointB);
+			}
+			i += Character.charCount(codePointA);
+			j += Character.charCount(codePointB);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+
+	private static int rank(Object value) {
+		return Snapshot.rank(Snapshot.tag(Row.Value.typeOf(value)));
+	}
+
+	/**
+	 * What to aggregate, and how.
+	 */
+	private class Spec {
+		final String kind;
+		final String ancestor;
+		final List<String> filters;
+		final List<String> or;
+		final List<String> groupBy;
+		final List<Aggregate> aggregates;
+		final int maxGroups;
+		/** Properties that are read. */
+		final Set<String> fields = Sets.newLinkedHashSet();
+
+		Spec(
+				String kind,
+				String ancestor,
+				List<String> filters,
+				List<String> or,
+				List<String> groupBy,
+				List<Aggregate> aggregates,
+				int maxGroups
+		) {
+			this.kind = kind;
+			this.ancestor = ancestor;
+			this.filters = filters;
+			this.or = or;
+			this.groupBy = groupBy;
+			this.aggregates = aggregates;
+			this.maxGroups = maxGroups;
+
+			fields.addAll(groupBy);
+			for(Aggregate aggregate : aggregates) {
+				if (aggregate.property != null) {
+					fields.add(aggregate.property);
+				}
+			}
+		}
+
+		List<Query> queries() {
+			List<Query> result = queryPlans.createQueries(kind, ancestor, filters, or);
+			if (fields.isEmpty()) {
+				for(Query q : result) {
+					q.setKeysOnly();
+				}
+			}
+			return result;
+		}
+	}
+
+	static class Aggregate {
+		final Function function;
+		@Nullable
+		final String property;
+		/** As given, to name the result. */
+		final String name;
+
+		Aggregate(Function function, @Nullable String property, String name) {
+			this.function = function;
+			this.property = property;
+			this.name = name;
+		}
+
+		static Aggregate parse(String expression) {
+			Matcher matcher = EXPRESSION.matcher(expression.trim());
+			checkArgument(matcher.matches(), "Unable to parse aggregate `" + expression + "`");
+
+			Function function;
+			try {
+				function = Function.valueOf(matcher.group(1).toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown aggregate `" + matcher.group(1) + "`", e);
+			}
+			String property = matcher.group(2);
+			checkArgument(property != null || function == Function.COUNT, "No property of " + expression);
+			return new Aggregate(function, property == null ? null : property.trim(), expression.trim());
+		}
+	}
+
+	/**
+	 * Aggregates of some rows, e.g. of a key range.
+	 */
+	private static class Partial {
+		final Spec spec;
+		/** Group key -> group number. */
+		final Map<Object, Integer> groups = Maps.newHashMap();
+		/** By group number. */
+		final List<Object> keys = Lists.newArrayList();
+		/** By aggregate. */
+		final Accumulator[] accumulators;
+		long rows;
+		/** Whether some rows were not aggregated, as there are too many groups. */
+		boolean overflow;
+
+		Partial(Spec spec) {
+			this.spec = spec;
+			accumulators = new Accumulator[spec.aggregates.size()];
+			for(int i = 0; i < accumulators.length; i++) {
+				Aggregate aggregate = spec.aggregates.get(i);
+				accumulators[i] = aggregate.function.accumulator(aggregate.property);
+			}
+		}
+
+		/**
+		 * @return False if there are too many groups.
+		 */
+		boolean add(Entity entity) {
+			int group = group(key(entity));
+			if (group == -1) {
+				return false;
+			}
+			rows++;
+			for(int i = 0; i < accumulators.length; i++) {
+				String property = spec.aggregates.get(i).property;
+				accumulators[i].add(group, property == null ? null : value(entity, property));
+			}
+			return true;
+		}
+
+		private Object key(Entity entity) {
+			List<String> groupBy = spec.groupBy;
+			switch (groupBy.size()) {
+				case 0:
+					return ALL;
+				case 1:
+					return value(entity, groupBy.get(0));
+				default:
+					Object[] values = new Object[groupBy.size()];
+					for(int i = 0; i < values.length; i++) {
+						values[i] = value(entity, groupBy.get(i));
+					}
+					return Arrays.asList(values);
+			}
+		}
+
+		/**
+		 * @return Number of group, created if needed, or -1 if there are too many.
+		 */
+		private int group(@Nullable Object key) {
+			Integer group = groups.get(key);
+			if (group == null) {
+				if (groups.size() >= spec.maxGroups) {
+					overflow = true;
+					return -1;
+				}
+				group = keys.size();
+				groups.put(key, group);
+				keys.add(key);
+				for(Accumulator accumulator : accumulators) {
+					accumulator.ensureCapacity(group + 1);
+				}
+			}
+			return group;
+		}
+
+		void merge(Partial other) {
+			rows += other.rows;
+			overflow |= other.overflow;
+			for(int otherGroup = 0; otherGroup < other.keys.size(); otherGroup++) {
+				int group = group(other.keys.get(otherGroup));
+				if (group == -1) {
+					return;
+				}
+				for(int i = 0; i < accumulators.length; i++) {
+					accumulators[i].merge(group, other.accumulators[i], otherGroup);
+				}
+			}
+		}
+
+		/**
+		 * @return Groups sorted by key.
+		 */
+		Result result() {
+			Integer[] order = new Integer[keys.size()];
+			for(int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return compareKeys(keys.get(a), keys.get(b));
+				}
+			});
+
+			Result result = new Result();
+			result.rows = rows;
+			result.groups = Lists.newArrayListWithCapacity(order.length);
+			for(int group : order) {
+				Group resultGroup = new Group();
+				List<String> groupBy = spec.groupBy;
+				Object key = keys.get(group);
+				for(int i = 0; i < groupBy.size(); i++) {
+					Object value = groupBy.size() == 1 ? key : ((List<?>) key).get(i);
+					resultGroup.key.put(groupBy.get(i), Row.Value.of(value));
+				}
+				for(int i = 0; i < accumulators.length; i++) {
+					resultGroup.values.put(spec.aggregates.get(i).name, accumulators[i].result(group));
+				}
+				result.groups.add(resultGroup);
+			}
+			return result;
+		}
+
+		private int compareKeys(@Nullable Object a, @Nullable Object b) {
+			if (spec.groupBy.size() < 2) {
+				return compareValues(a, b);
+			}
+			List<?> listA = (List<?>) a;
+			List<?> listB = (List<?>) b;
+			for(int i = 0; i < listA.size(); i++) {
+				int result = compareValues(listA.get(i), listB.get(i));
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * State of an aggregate for each group, by group number.
+	 */
+	private abstract static class Accumulator {
+		/** Makes room for groups [0, groups). */
+		abstract void ensureCapacity(int groups);
+
+		abstract void add(int group, @Nullable Object value);
+
+		abstract void merge(int group, Accumulator other, int otherGroup);
+
+		@Nullable
+		abstract Object result(int group);
+
+		static int grown(int length, int groups) {
+			return Math.max(groups, length * 2);
+		}
+	}
+
+	private static class CountAccumulator extends Accumulator {
+		private final boolean rows;
+		private long[] counts = new long[16];
+
+		/**
+		 * @param rows Whether to count rows, otherwise non-null values.
+		 */
+		CountAccumulator(boolean rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		void ensureCapacity(int groups) {
+			if (counts.length < groups) {
+				counts = Arrays.copyOf(counts, grown(counts.length, groups));
+			}
+		}
+
+		@Override
+		void add(int group, @Nullable Object value) {
+			if (rows || value != null) {
+				counts[group]++;
+			}
+		}
+
+		@Override
+		void merge(int group, Accumulator other, int otherGroup) {
+			counts[group] += ((CountAccumulator) other).counts[otherGroup];
+		}
+
+		@Override
+		Object result(int group) {
+			return counts[group];
+		}
+	}
+
+	private static class SumAccumulator extends Accumulator {
+		private final boolean average;
+		private long[] longs = new long[16];
+		private double[] doubles = new double[16];
+		private long[] counts = new long[16];
+		/** Whether there were non-integers. */
+		private boolean[] floating = new boolean[16];
+
+		SumAccumulator(boolean average) {
+			this.average = average;
+		}
+
+		@Override
+		void ensureCapacity(int groups) {
+			if (counts.length < groups) {
+				int length = grown(counts.length, groups);
+				longs = Arrays.copyOf(longs, length);
+				doubles = Arrays.copyOf(doubles, length);
+				counts = Arrays.copyOf(counts, length);
+				floating = Arrays.copyOf(floating, length);
+			}
+		}
+
+		@Override
+		void add(int group, @Nullable Object value) {
+			if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+				longs[group] += ((Number) value).longValue();
+			} else if (value instanceof Number) {
+				doubles[group] += ((Number) value).doubleValue();
+				floating[group] = true;
+			} else {
+				return;
+			}
+			counts[group]++;
+		}
+
+		@Override
+		void merge(int group, Accumulator other, int otherGroup) {
+			SumAccumulator that = (SumAccumulator) other;
+			longs[group] += that.longs[otherGroup];
+			doubles[group] += that.doubles[otherGroup];
+			counts[group] += that.counts[otherGroup];
+			floating[group] |= that.floating[otherGroup];
+		}
+
+		@Nullable
+		@Override
+		Object result(int group) {
+			if (counts[group] == 0) {
+				return null;
+			}
+			if (average) {
+				return (longs[group] + doubles[group]) / counts[group];
+			}
+			return floating[group] ? (Object) (longs[group] + doubles[group]) : (Object) longs[group];
+		}
+	}
+
+	private static class MinMaxAccumulator extends Accumulator {
+		private final boolean max;
+		private Object[] values = new Object[16];
+
+		MinMaxAccumulator(boolean max) {
+			this.max = max;
+		}
+
+		@Override
+		void ensureCapacity(int groups) {
+			if (values.length < groups) {
+				values = Arrays.copyOf(values, grown(values.length, groups));
+			}
+		}
+
+		@Override
+		void add(int group, @Nullable Object value) {
+			if (value == null) {
+				return;
+			}
+			Object current = values[group];
+			if (current == null || (max ? compareValues(value, current) > 0 : compareValues(value, current) < 0)) {
+				values[group] = value;
+			}
+		}
+
+		@Override
+		void merge(int group, Accumulator other, int otherGroup) {
+			add(group, ((MinMaxAccumulator) other).values[otherGroup]);
+		}
+
+		@Nullable
+		@Override
+		Object result(int group) {
+			return values[group] == null ? null : Row.Value.of(values[group]);
+		}
+	}
+
+	private static class DistinctAccumulator extends Accumulator {
+		private final List<Set<Object>> sets = Lists.newArrayList();
+
+		@Override
+		void ensureCapacity(int groups) {
+			while (sets.size() < groups) {
+				sets.add(Sets.newHashSet());
+			}
+		}
+
+		@Override
+		void add(int group, @Nullable Object value) {
+			if (value != null) {
+				sets.get(group).add(value);
+			}
+		}
+
+		@Override
+		void merge(int group, Accumulator other, int otherGroup) {
+			sets.get(group).addAll(((DistinctAccumulator) other).sets.get(otherGroup));
+		}
+
+		@Override
+		Object result(int group) {
+			return (long) sets.get(group).size();
+		}
+	}
+
+	public static class Result {
+		/** Sorted by key. */
+		@JsonProperty
+		List<Group> groups;
+
+		/** Entities aggregated. */
+		@JsonProperty
+		long rows;
+
+		/** Key ranges aggregated concurrently. */
+		@JsonProperty
+		int shards;
+
+		/** "keys" or "entities". */
+		@JsonProperty
+		String fetched;
+
+		@JsonProperty
+		long millis;
+	}
+
+	public static class Group {
+		/** Values of group-by properties. */
+		@JsonProperty
+		final Map<String, Row.Value> key = Maps.newLinkedHashMap();
+
+		/** Aggregate expression -> its value, null if there were no values. Min and max are {@link Row.Value}s. */
+		@JsonProperty
+		final Map<String, Object> values = Maps.newLinkedHashMap();
+	}
+}
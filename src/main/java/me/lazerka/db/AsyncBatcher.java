@@ -0,0 +1,114 @@
+package me.lazerka.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sends items in batches asynchronously, so that producing next items overlaps with sending previous ones.
+ *
+ * At most `maxInFlight` batches are being sent at once, after that {@link #add} blocks on the oldest one.
+ * Failed batches are resubmitted up to `maxRetries` times. Not thread-safe.
+ *
+ * @author Dzmitry Lazerka
+ */
+abstract class AsyncBatcher<T> {
+	private static final Logger logger = LoggerFactory.getLogger(AsyncBatcher.class);
+
+	private final int batchSize;
+	private final int maxInFlight;
+	private final int maxRetries;
+
+	private final ArrayDeque<Batch<T>> inFlight;
+	private List<T> current;
+
+	protected final long startedMs = System.currentTimeMillis();
+	protected int batches;
+	protected int retries;
+
+	AsyncBatcher(int batchSize, int maxInFlight, int maxRetries) {
+		checkArgument(batchSize > 0, batchSize);
+		checkArgument(maxInFlight > 0, maxInFlight);
+		this.batchSize = batchSize;
+		this.maxInFlight = maxInFlight;
+		this.maxRetries = maxRetries;
+		this.inFlight = new ArrayDeque<>(maxInFlight);
+		this.current = new ArrayList<>(batchSize);
+	}
+
+	public void add(T item) {
+		current.add(item);
+		if (current.size() == batchSize) {
+			submit(new Batch<>(current));
+			current = new ArrayList<>(batchSize);
+		}
+	}
+
+	/**
+	 * Sends the last incomplete batch and waits for all of them.
+	 */
+	protected void drain() {
+		if (!current.isEmpty()) {
+			submit(new Batch<>(current));
+			current = new ArrayList<>(0);
+		}
+		while (!inFlight.isEmpty()) {
+			awaitOldest();
+		}
+	}
+
+	protected abstract Future<?> send(List<T> items);
+
+	protected abstract void succeeded(List<T> items);
+
+	protected abstract void failed(List<T> items, Throwable cause);
+
+	private void submit(Batch<T> batch) {
+		while (inFlight.size() >= maxInFlight) {
+			awaitOldest();
+		}
+		logger.debug("Sending batch of {}", batch.items.size());
+		batch.future = send(batch.items);
+		inFlight.addLast(batch);
+	}
+
+	private void awaitOldest() {
+		Batch<T> batch = inFlight.removeFirst();
+		try {
+			batch.future.get();
+			batches++;
+			succeeded(batch.items);
+		} catch (ExecutionException e) {
+			if (batch.attempts < maxRetries) {
+				batch.attempts++;
+				retries++;
+				logger.warn("Batch of {} failed, retry #{}: {}", batch.items.size(), batch.attempts, e.getCause().toString());
+				submit(batch);
+			} else {
+				batches++;
+				logger.error("Batch of {} failed after {} retries", batch.items.size(), batch.attempts, e.getCause());
+				failed(batch.items, e.getCause());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sending", e);
+		}
+	}
+
+	private static class Batch<T> {
+		final List<T> items;
+		Future<?> future;
+		int attempts;
+
+		Batch(List<T> items) {
+			this.items = items;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Deletes keys in batches asynchronously, so that fetching next keys overlaps with deleting previous ones.
+ * See {@link AsyncBatcher}.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class BulkDeleter extends AsyncBatcher<Key> {
+	private static final Logger logger = LoggerFactory.getLogger(BulkDeleter.class);
+
+	private final AsyncDatastoreService datastore;
+	private final Result result = new Result();
+
+	public BulkDeleter(AsyncDatastoreService datastore, int batchSize, int maxInFlight, int maxRetries) {
+		super(batchSize, maxInFlight, maxRetries);
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sends the last incomplete batch and waits for all of them.
+	 */
+	public Result finish() {
+		drain();
+
+		result.batches = batches;
+		result.retries = retries;
+		result.millis = System.currentTimeMillis() - startedMs;
+		result.perSecond = result.millis == 0 ? result.deleted : result.deleted * 1000d / result.millis;
+		logger.info("Deleted {} in {} batches ({} retries, {} failed) in {}ms, {}/s",
+				result.deleted, result.batches, result.retries, result.failed, result.millis, (long) result.perSecond);
+		return result;
+	}
+
+	@Override
+	protected Future<Void> send(List<Key> keys) {
+		return datastore.delete(keys);
+	}
+
+	@Override
+	protected void succeeded(List<Key> keys) {
+		result.deleted += keys.size();
+	}
+
+	@Override
+	protected void failed(List<Key> keys, Throwable cause) {
+		result.failed += keys.size();
+	}
+
+	public static class Result {
+		@JsonProperty
+		int deleted;
+
+		@JsonProperty
+		int failed;
+
+		@JsonProperty
+		int batches;
+
+		@JsonProperty
+		int retries;
+
+		@JsonProperty
+		long millis;
+
+		@JsonProperty
+		double perSecond;
+	}
+}
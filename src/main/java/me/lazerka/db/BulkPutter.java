@@ -0,0 +1,166 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Puts entities in batches asynchronously, so that parsing next entities overlaps with writing previous ones.
+ * See {@link AsyncBatcher}.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class BulkPutter extends AsyncBatcher<Entity> {
+	private static final Logger logger = LoggerFactory.getLogger(BulkPutter.class);
+
+	/** How many error messages to report. */
+	private static final int MAX_ERRORS = 10;
+
+	private final AsyncDatastoreService datastore;
+	private final Result result = new Result();
+
+	public BulkPutter(AsyncDatastoreService datastore, int batchSize, int maxInFlight, int maxRetries) {
+		super(batchSize, maxInFlight, maxRetries);
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Counts an input that couldn't be made into an entity.
+	 */
+	public void reject(String where, Exception e) {
+		result.rejected++;
+		addError(where + ": " + e.getMessage());
+	}
+
+	/**
+	 * Sends the last incomplete batch and waits for all of them.
+	 */
+	public Result finish() {
+		drain();
+
+		result.batches = batches;
+		result.retries = retries;
+		result.millis = System.currentTimeMillis() - startedMs;
+		result.perSecond = result.millis == 0 ? result.accepted : result.accepted * 1000d / result.millis;
+		logger.info("Put {} in {} batches ({} retries, {} failed, {} rejected) in {}ms, {}/s",
+				result.accepted, result.batches, result.retries, result.failed, result.rejected, result.millis,
+				(long) result.perSecond);
+		return result;
+	}
+
+	/**
+	 * Entities with incomplete keys get ids allocated before the first attempt, and are replaced in the batch by
+	 * complete ones, so that retry of a batch that was actually written (e.g. timed out) overwrites the same
+	 * entities instead of creating duplicates.
+	 */
+	@Override
+	protected Future<List<Key>> send(List<Entity> entities) {
+		try {
+			completeKeys(entities);
+		} catch (ExecutionException e) {
+			// To be retried as a failed put.
+			return Futures.immediateFailedFuture(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while allocating ids", e);
+		}
+		return datastore.put(entities);
+	}
+
+	private void completeKeys(List<Entity> entities) throws ExecutionException, InterruptedException {
+		// Parent and kind -> indexes of entities to allocate ids for.
+		Map<List<Object>, List<Integer>> incomplete = Maps.newLinkedHashMap();
+		for(int i = 0; i < entities.size(); i++) {
+			Key key = entities.get(i).getKey();
+			if (!key.isComplete()) {
+				List<Object> group = Arrays.<Object>asList(key.getParent(), key.getKind());
+				List<Integer> indexes = incomplete.get(group);
+				if (indexes == null) {
+					indexes = Lists.newArrayList();
+					incomplete.put(group, indexes);
+				}
+				indexes.add(i);
+			}
+		}
+		if (incomplete.isEmpty()) {
+			return;
+		}
+
+		// All at once, then waited for.
+		Map<List<Object>, Future<KeyRange>> ranges = Maps.newLinkedHashMap();
+		for(Map.Entry<List<Object>, List<Integer>> entry : incomplete.entrySet()) {
+			Key parent = (Key) entry.getKey().get(0);
+			String kind = (String) entry.getKey().get(1);
+			ranges.put(entry.getKey(), datastore.allocateIds(parent, kind, entry.getValue().size()));
+		}
+		for(Map.Entry<List<Object>, List<Integer>> entry : incomplete.entrySet()) {
+			Iterator<Key> keys = ranges.get(entry.getKey()).get().iterator();
+			for(int i : entry.getValue()) {
+				Entity complete = new Entity(keys.next());
+				complete.setPropertiesFrom(entities.get(i));
+				entities.set(i, complete);
+			}
+		}
+	}
+
+	@Override
+	protected void succeeded(List<Entity> entities) {
+		result.accepted += entities.size();
+	}
+
+	@Override
+	protected void failed(List<Entity> entities, Throwable cause) {
+		result.failed += entities.size();
+		addError("Batch starting with " + entities.get(0).getKey() + ": " + cause);
+	}
+
+	private void addError(String error) {
+		if (result.errors.size() < MAX_ERRORS) {
+			result.errors.add(error);
+		}
+	}
+
+	public static class Result {
+		/** Written successfully. */
+		@JsonProperty
+		int accepted;
+
+		/** Couldn't be written. */
+		@JsonProperty
+		int failed;
+
+		/** Couldn't be parsed. */
+		@JsonProperty
+		int rejected;
+
+		@JsonProperty
+		int batches;
+
+		@JsonProperty
+		int retries;
+
+		@JsonProperty
+		long millis;
+
+		@JsonProperty
+		double perSecond;
+
+		/** First few messages of failures and rejections. */
+		@JsonProperty
+		final List<String> errors = Lists.newArrayList();
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.regex.Pattern;
 
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -12,6 +13,8 @@ import javax.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.inject.Injector;
+
 /**
  * Bypasses _ah/* requests except some.
  *
@@ -22,6 +25,21 @@ public class BypassGuiceFilter extends com.google.inject.servlet.GuiceFilter {
 
     private final Pattern PATTERN = Pattern.compile("/_ah/.*");
 
+    /**
+     * Initializes servlets, including Jersey scanning resources, and records how long that took.
+     */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        long start = System.currentTimeMillis();
+        super.init(filterConfig);
+        long millis = System.currentTimeMillis() - start;
+
+        Injector injector = (Injector) filterConfig.getServletContext().getAttribute(Injector.class.getName());
+        if (injector != null) {
+            injector.getInstance(Startup.class).record("jersey", millis);
+        }
+    }
+
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         if (request instanceof HttpServletRequest) {
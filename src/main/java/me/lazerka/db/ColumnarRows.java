@@ -0,0 +1,114 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import me.lazerka.db.Row.Value.Type;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact alternative to a list of {@link Row}: property names and types are sent once in `columns`,
+ * and each row is an array of values in column order.
+ *
+ * Row may be shorter than `columns` if it doesn't have trailing properties, missing values are nulls.
+ * If values of a property have different types, its column has null `type` and `types` array with type of each row.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class ColumnarRows {
+	@JsonProperty
+	final List<Column> columns = Lists.newArrayList();
+
+	@JsonProperty
+	final List<List<String>> rows;
+
+	private final Map<String, Column> byName = Maps.newHashMap();
+
+	public ColumnarRows(int expectedRows) {
+		rows = Lists.newArrayListWithCapacity(expectedRows);
+	}
+
+	/**
+	 * @param fields Properties to add, null for all.
+	 */
+	public void add(Entity entity, @Nullable Set<String> fields) {
+		Map<String, Object> properties = entity.getProperties();
+		String[] values = new String[columns.size() + properties.size() + 1];
+		int length = set(values, Entity.KEY_RESERVED_PROPERTY, entity.getKey(), 0);
+
+		Iterable<String> names = fields == null ? properties.keySet() : fields;
+		for(String name : names) {
+			if (properties.containsKey(name)) {
+				length = set(values, name, properties.get(name), length);
+			}
+		}
+
+		for(Column column : columns) {
+			boolean present = column.index < length && values[column.index] != null;
+			if (column.types == null && present && column.lastType != column.type) {
+				// First mismatch: switch to per-row types, filling previous rows.
+				column.types = Lists.newArrayListWithCapacity(rows.size() + 1);
+				for(List<String> previous : rows) {
+					boolean hadValue = column.index < previous.size() && previous.get(column.index) != null;
+					column.types.add(hadValue ? column.type : null);
+				}
+				column.type = null;
+			}
+			if (column.types != null) {
+				column.types.add(present ? column.lastType : null);
+			}
+		}
+		rows.add(Arrays.asList(length == values.length ? values : Arrays.copyOf(values, length)));
+	}
+
+	/**
+	 * @return New length of values.
+	 */
+	private int set(String[] values, String name, @Nullable Object value, int length) {
+		Column column = byName.get(name);
+		Type type = Row.Value.typeOf(value);
+		if (column == null) {
+			column = new Column(name, columns.size(), type);
+			columns.add(column);
+			byName.put(name, column);
+		}
+		column.lastType = type;
+
+		values[column.index] = Row.Value.format(value);
+		return Math.max(length, column.index + 1);
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	static class Column {
+		@JsonProperty
+		final String name;
+
+		/** Null if types differ. */
+		@JsonProperty
+		@Nullable
+		Type type;
+
+		/** Only if types differ, type per row, null where there's no value. */
+		@JsonProperty
+		@Nullable
+		List<Type> types;
+
+		final int index;
+
+		/** Type of value in the row being added. */
+		Type lastType;
+
+		Column(String name, int index, Type type) {
+			this.name = name;
+			this.index = index;
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package me.lazerka.db;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response body with gzip or deflate, whichever client accepts (gzip preferred).
+ *
+ * Unlike Jersey's GZIPContentEncodingFilter, also does deflate, and uses sync flush, so that
+ * flushes of streamed responses reach the client.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class CompressionFilter implements ContainerResponseFilter {
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	@Override
+	public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+		if (response.getEntity() == null || response.getHttpHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+			return response;
+		}
+
+		String encoding = chooseEncoding(request.getRequestHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING));
+		response.getHttpHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (encoding != null) {
+			response.getHttpHeaders().add(HttpHeaders.CONTENT_ENCODING, encoding);
+			response.setContainerResponseWriter(new Writer(response.getContainerResponseWriter(), encoding));
+		}
+		return response;
+	}
+
+	static String chooseEncoding(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		String deflate = null;
+		for(String part : acceptEncoding.split(",")) {
+			String[] tokens = part.trim().split(";");
+			String coding = tokens[0].trim().toLowerCase();
+			if (isRefused(tokens)) {
+				continue;
+			}
+			if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+				return GZIP;
+			} else if (coding.equals(DEFLATE)) {
+				deflate = DEFLATE;
+			}
+		}
+		return deflate;
+	}
+
+	/**
+	 * @param tokens Coding and its parameters.
+	 * @return Whether q-value is zero (e.g. "q=0", "q=0.00"), or can't be parsed.
+	 */
+	private static boolean isRefused(String[] tokens) {
+		for(int i = 1; i < tokens.length; i++) {
+			String parameter = tokens[i].replace(" ", "").toLowerCase();
+			if (parameter.startsWith("q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2)) <= 0;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static class Writer implements ContainerResponseWriter {
+		private final ContainerResponseWriter writer;
+		private final String encoding;
+		private DeflaterOutputStream out;
+
+		Writer(ContainerResponseWriter writer, String encoding) {
+			this.writer = writer;
+			this.encoding = encoding;
+		}
+
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+			// Length is unknown after compression.
+			OutputStream raw = writer.writeStatusAndHeaders(-1, response);
+			out = encoding.equals(GZIP)
+					? new GZIPOutputStream(raw, true)
+					: new DeflaterOutputStream(raw, true);
+			return out;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (out != null) {
+				out.finish();
+			}
+			writer.finish();
+		}
+	}
+}
@@ -1,24 +1,48 @@
 package me.lazerka.db;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.jaxrs.smile.SmileMediaTypes;
 import com.google.appengine.api.datastore.*;
 import com.google.appengine.api.datastore.Query.*;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import me.lazerka.db.Row.Value.Type;
-import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
+import com.google.common.io.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.servlet.http.HttpServlet;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 
@@ -27,74 +51,478 @@ import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaul
 public class DBResource extends HttpServlet {
 	private static final Logger logger = LoggerFactory.getLogger(DBResource.class);
 
-	private static final Pattern KEY_ID_PATTERN = Pattern.compile("^(\\w+)\\((\\d+)\\)$");
-	private static final Pattern KEY_NAME_PATTERN = Pattern.compile("^(\\w+)\\(\"([^\"]+)\"\\)$");
-	private static final int MAX_VALUE_LENGTH = 2048;
+	/** Newline-delimited JSON, one row per line. */
+	public static final String APPLICATION_NDJSON = "application/x-ndjson";
 
-	private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+	/** Binary JSON, if client asks for it in Accept. */
+	public static final String APPLICATION_SMILE = SmileMediaTypes.APPLICATION_JACKSON_SMILE;
+	static final MediaType SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
 
+	/**
+	 * Web-safe cursor to pass as `cursor` parameter to continue from where the response stopped.
+	 * Absent if there's nothing more to read.
+	 */
+	public static final String CURSOR_HEADER = "X-Cursor";
+
+	/** JSON of {@link Profile}, if asked for with `profile=true`. */
+	public static final String PROFILE_HEADER = "X-Profile";
+
+	/** Id of export, to pass as `resume` parameter if it didn't finish. */
+	public static final String EXPORT_ID_HEADER = "X-Export-Id";
+
+	private static final int DELETE_BATCH_SIZE = 500;
+	private static final int DELETE_BATCHES_IN_FLIGHT = 8;
+	private static final int DELETE_RETRIES = 3;
+
+	/** Datastore limit of keys per get. */
+	private static final int GET_BATCH_SIZE = 1000;
+
+	private static final int IMPORT_BATCH_SIZE = 500;
+	private static final int IMPORT_BATCHES_IN_FLIGHT = 8;
+	private static final int IMPORT_RETRIES = 3;
+
+	/** Of current request, as this is a singleton. */
+	@Inject
+	Provider<HttpHeaders> headers;
+
+	@Inject
+	DatastoreService datastore;
+
+	@Inject
+	AsyncDatastoreService asyncDatastore;
+
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	EntityCounter counter;
+
+	@Inject
+	QueryPlans queryPlans;
+
+	@Inject
+	ResultCache resultCache;
+
+	@Inject
+	MetadataCatalog catalog;
+
+	@Inject
+	Exporter exporter;
+
+	@Inject
+	@Named("smile")
+	ObjectMapper smileMapper;
+
+	@Inject
+	Parallel parallel;
+
+	@Inject
+	FetchSizer fetchSizer;
+
+	@Inject
+	DeleteJobs deleteJobs;
+
+	@Inject
+	Startup startup;
+
+	@Inject
+	Aggregator aggregator;
+
+	private final Metrics metrics;
+	private final Metrics.Counter listsProjected;
+	private final Metrics.Counter listsNotProjected;
+	private final Metrics.Counter entitiesReturned;
+	/** By {@link Aggregator.Result#fetched}. */
+	private final Map<String, Metrics.Counter> aggregateRequests = new HashMap<>();
+	private final Metrics.Counter deleted;
+	private final Metrics.Counter deleteFailed;
+	private final Metrics.Histogram deletesPerSecond;
+	private final Metrics.Counter imported;
+	private final Metrics.Counter importFailed;
+	private final Metrics.Histogram importsPerSecond;
+
+	@Inject
+	public DBResource(Metrics metrics) {
+		this.metrics = metrics;
+
+		listsProjected = metrics.counter("db_list_total", "List requests.", "projected", "true");
+		listsNotProjected = metrics.counter("db_list_total", "List requests.", "projected", "false");
+		entitiesReturned = metrics.counter("db_entities_returned_total", "Entities returned by list.");
+		for(String fetched : ImmutableList.of("keys", "entities")) {
+			aggregateRequests.put(
+					fetched, metrics.counter("db_aggregate_total", "Aggregate requests.", "fetched", fetched));
+		}
+		deleted = metrics.counter("db_deleted_entities_total", "Entities deleted.");
+		deleteFailed = metrics.counter("db_delete_failed_entities_total", "Entities failed to be deleted.");
+		deletesPerSecond = metrics.histogram("db_delete_per_second", "Delete throughput of each request.");
+		imported = metrics.counter("db_imported_entities_total", "Entities imported.");
+		importFailed = metrics.counter("db_import_failed_entities_total", "Entities failed or rejected on import.");
+		importsPerSecond = metrics.histogram("db_import_per_second", "Import throughput of each request.");
+	}
+
+	/**
+	 * @param cursor Web-safe cursor from {@link #CURSOR_HEADER} of a previous response, to continue from.
+	 * @param stream If true, rows are written as NDJSON while they're being fetched, instead of collecting them
+	 *               into one list first. Output is flushed after every fetched chunk. As headers are already sent
+	 *               by then, next cursor comes as the last line: <code>{"cursor": "..."}</code>.
+	 * @param useCache Whether non-streamed response may be served from {@link ResultCache}.
+	 * @param fields Properties to return, all if empty. Whole entities are fetched and the rest is dropped, unless
+	 *               it's just __key__, which is fetched by a keys-only query.
+	 * @param project Whether to use a projection query for `fields`, if they're all indexed and of types
+	 *                {@link MetadataCatalog#project} can tell. It fetches less, but returns different rows:
+	 *                entities that don't have some of the fields are dropped, and a multi-valued property gives
+	 *                a row per value, each counted against `limit`.
+	 * @param format "rows" for list of {@link Row}, or "columnar" for {@link ColumnarRows}. Not for streaming.
+	 * @param or Alternative filters, one of which must hold in addition to `filters`. This and IN filters are run
+	 *           as concurrent queries, see {@link MergingIterator}. There's no cursor for them.
+	 * @param profile Whether to return {@link Profile} in {@link #PROFILE_HEADER}, or as the last line if streamed:
+	 *                <code>{"profile": {...}}</code>. Bypasses cache.
+	 */
 	@GET
 	@Path("/entity")
-	@Produces("application/json")
-	public List<Row> list(
+	@Produces({"application/json", APPLICATION_SMILE, APPLICATION_NDJSON})
+	public Response list(
 			@QueryParam("kind") @DefaultValue("") String kind,
 			@QueryParam("ancestor") @DefaultValue("") String ancestor,
 			@QueryParam("filters") List<String> filters,
-			@QueryParam("limit") @DefaultValue("100") int limit
+			@QueryParam("limit") @DefaultValue("100") int limit,
+			@QueryParam("cursor") @DefaultValue("") String cursor,
+			@QueryParam("stream") @DefaultValue("false") boolean stream,
+			@QueryParam("cache") @DefaultValue("true") boolean useCache,
+			@QueryParam("fields") List<String> fields,
+			@QueryParam("format") @DefaultValue("rows") String format,
+			@QueryParam("or") List<String> or,
+			@QueryParam("profile") @DefaultValue("false") boolean profile,
+			@QueryParam("project") @DefaultValue("false") boolean project
 	) throws IOException {
-		List<Row> result = new ArrayList<>(100);
+		boolean columnar = format.equals("columnar");
+		if (!columnar && !format.equals("rows")) {
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		if (columnar && stream) {
+			throw new IllegalArgumentException("Columnar format can not be streamed");
+		}
+
+		Profile profiler = profile ? new Profile() : null;
+		useCache &= !stream && !profile;
+		String request =
+				ResultCache.request("entity", ancestor, filters, limit, cursor, fields, format, or, project);
+		if (useCache) {
+			Response cached = resultCache.get(kind, request, responseType());
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		Set<String> fieldSet = fields.isEmpty() ? null : ImmutableSet.copyOf(fields);
+
+		List<Query> queries = queryPlans.createQueries(kind, ancestor, filters, or);
+		boolean projected = false;
+		if (fieldSet != null && !project && fieldSet.equals(ImmutableSet.of(Entity.KEY_RESERVED_PROPERTY))) {
+			for(Query q : queries) {
+				q.setKeysOnly();
+			}
+		} else if (fieldSet != null && project) {
+			projected = true;
+			for(Query q : queries) {
+				projected &= catalog.project(q, fieldSet);
+			}
+			// All branches or none, so that projection failure of any is handled below.
+			if (!projected) {
+				queries = queryPlans.createQueries(kind, ancestor, filters, or);
+			}
+		}
+		FetchOptions fetchOptions = createFetchOptions(queries.get(0), limit, cursor);
+		logger.info("{} {}", queries, fetchOptions);
+		QueryResultIterator<Entity> iterator;
+		try {
+			iterator = run(queries, fetchOptions, profiler);
+			// Trigger the first fetch, so that projection failures are seen now.
+			iterator.hasNext();
+		} catch (DatastoreNeedIndexException | IllegalArgumentException e) {
+			if (!projected) {
+				throw e;
+			}
+			logger.info("Projection failed, fetching whole entities: {}", e.getMessage());
+			queries = queryPlans.createQueries(kind, ancestor, filters, or);
+			iterator = run(queries, fetchOptions, profiler);
+		}
 
-		Query q = createQuery(kind, ancestor, filters);
-		FetchOptions fetchOptions = createFetchOptions(limit);
+		(projected ? listsProjected : listsNotProjected).increment();
+		iterator = prefetch(iterator, fetchOptions);
+		if (stream) {
+			StreamingOutput output =
+					new NdjsonOutput(iterator, fieldSet, limit, fetchOptions.getChunkSize(), profiler);
+			return Response.ok(output, APPLICATION_NDJSON).build();
+		}
+
+		try {
+			if (columnar) {
+				ColumnarRows result = new ColumnarRows(Math.min(limit, 1000));
+				long convertNanos = 0;
+				while (iterator.hasNext()) {
+					Entity entity = iterator.next();
+					long start = System.nanoTime();
+					result.add(entity, fieldSet);
+					convertNanos += System.nanoTime() - start;
+				}
+				returned(result.rows.size());
+				String next = nextCursor(iterator, result.rows.size(), limit);
+				if (profiler != null) {
+					profiler.add("convert", convertNanos);
+					profiler.returned(result.rows.size());
+				}
+				return respond(useCache, kind, request, result, next, profiler);
+			}
+
+			// Serialized as entities come, so that it overlaps with fetching, instead of happening after it.
+			MediaType type = responseType();
+			ObjectMapper mapper = type.equals(SMILE_TYPE) ? smileMapper : objectMapper;
+			ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+			JsonGenerator generator = mapper.getFactory().createGenerator(body);
+			EntityJson entityJson = new EntityJson();
+			int count = 0;
+			long writeNanos = 0;
+			generator.writeStartArray();
+			while (iterator.hasNext()) {
+				Entity entity = iterator.next();
+				long start = System.nanoTime();
+				entityJson.write(entity, fieldSet, generator);
+				writeNanos += System.nanoTime() - start;
+				count++;
+			}
+			generator.writeEndArray();
+			generator.close();
+			returned(count);
+
+			String next = nextCursor(iterator, count, limit);
+			if (useCache) {
+				return resultCache.put(kind, request, body.toByteArray(), next, type);
+			}
+			if (profiler != null) {
+				// Converted and serialized in one pass.
+				profiler.add("write", writeNanos);
+				profiler.returned(count);
+				return profiled(Response.ok(body.toByteArray(), type), profiler, body.size(), next);
+			}
+			return withCursor(Response.ok(body.toByteArray(), type), next);
+		} finally {
+			close(iterator);
+		}
+	}
 
-		logger.info("{} {}", q, fetchOptions);
-		PreparedQuery pq = datastore.prepare(q);
+	/**
+	 * Looks up entities by keys, in one batch get, or several concurrent ones if there's more than
+	 * {@link #GET_BATCH_SIZE} keys.
+	 *
+	 * @param keys Keys as printed in rows, like <code>Parent(1)/Kind("name")</code>, or web-safe.
+	 * @param fields Properties to return, all if empty.
+	 * @return Rows of found entities in order of given keys, and keys that weren't found.
+	 */
+	@POST
+	@Path("/entity/get")
+	@Consumes("application/json")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public GetResult get(
+			@QueryParam("fields") List<String> fields,
+			List<String> keys
+	) {
+		List<Key> parsed = new ArrayList<>(keys.size());
+		for(String key : keys) {
+			parsed.add(FilterParser.parseKey(key));
+		}
 
-		QueryResultIterable<Entity> iterable = pq.asQueryResultIterable(fetchOptions);
+		Map<Key, Entity> found;
+		if (parsed.size() <= GET_BATCH_SIZE) {
+			found = datastore.get(parsed);
+		} else {
+			// Sent all at once, then waited for.
+			List<Future<Map<Key, Entity>>> batches = new ArrayList<>();
+			for(List<Key> batch : Lists.partition(parsed, GET_BATCH_SIZE)) {
+				batches.add(asyncDatastore.get(batch));
+			}
+			found = new HashMap<>(parsed.size());
+			try {
+				for(Future<Map<Key, Entity>> batch : batches) {
+					found.putAll(batch.get());
+				}
+			} catch (ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
 
-		for(Entity entity : iterable) {
-			Row row = new Row();
-			row.put(Entity.KEY_RESERVED_PROPERTY, toRowValue(entity.getKey()));
-			for(String key : entity.getProperties().keySet()) {
-				Object value = entity.getProperty(key);
-				row.put(key, toRowValue(value));
+		List<Entity> entities = new ArrayList<>(found.size());
+		List<String> missing = new ArrayList<>();
+		for(Key key : parsed) {
+			Entity entity = found.get(key);
+			if (entity == null) {
+				missing.add(key.toString());
+			} else {
+				entities.add(entity);
 			}
-			result.add(row);
 		}
+		returned(entities.size());
+		logger.info("Got {} of {} keys", entities.size(), parsed.size());
 
-		return result;
+		Set<String> fieldSet = fields.isEmpty() ? null : ImmutableSet.copyOf(fields);
+		return new GetResult(new EntityJson.Rows(entities, fieldSet), missing);
 	}
 
+	/**
+	 * @param refresh Reload {@link MetadataCatalog} first, instead of using what's in memory.
+	 */
 	@GET
 	@Path("/kind")
-	@Produces("application/json")
-	public List<String> kind() {
-		Query q = new Query(Entities.KIND_METADATA_KIND);
-		PreparedQuery preparedQuery = datastore.prepare(q);
-		List<String> results = Lists.newArrayList();
-		for(Entity entity : preparedQuery.asIterable()) {
-			results.add(entity.getKey().getName());
-		}
-		return results;
+	@Produces({"application/json", APPLICATION_SMILE})
+	public List<String> kind(
+			@QueryParam("refresh") @DefaultValue("false") boolean refresh
+	) {
+		if (refresh) {
+			catalog.refresh();
+		}
+		return catalog.kinds();
+	}
+
+	/**
+	 * @return Indexed properties of the kind and their representations, from {@link MetadataCatalog}.
+	 */
+	@GET
+	@Path("/kind/{kind}/properties")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Map<String, List<String>> properties(
+			@PathParam("kind") String kind
+	) {
+		return catalog.properties(kind);
 	}
 
+	/**
+	 * @return Chunk sizes {@link FetchSizer} currently chooses, and measurements they're based on, by query shape.
+	 */
+	@GET
+	@Path("/fetch-sizes")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Map<String, FetchSizer.Choice> fetchSizes() {
+		return fetchSizer.choices();
+	}
+
+	/**
+	 * Streams the whole kind, see {@link Exporter}.
+	 *
+	 * @param format "ndjson" for rows like in {@link #list}, or "csv" with values only.
+	 * @param fields Properties to export. If empty: all for NDJSON, and indexed ones from {@link MetadataCatalog}
+	 *               for CSV, as its columns must be known upfront.
+	 * @param shards Number of key ranges to read concurrently.
+	 * @param resume Id from {@link #EXPORT_ID_HEADER} of an unfinished export, to continue it.
+	 *               Other parameters are ignored then.
+	 */
+	@GET
+	@Path("/export")
+	@Produces({APPLICATION_NDJSON, "text/csv"})
+	public Response export(
+			@QueryParam("kind") @DefaultValue("") String kind,
+			@QueryParam("format") @DefaultValue("ndjson") String format,
+			@QueryParam("fields") List<String> fields,
+			@QueryParam("shards") @DefaultValue("8") int shards,
+			@QueryParam("resume") @DefaultValue("") String resume
+	) {
+		Exporter.State state;
+		if (resume.isEmpty()) {
+			Exporter.Format exportFormat = Exporter.Format.valueOf(format.toUpperCase());
+			if (fields.isEmpty() && exportFormat == Exporter.Format.CSV) {
+				fields = ImmutableList.copyOf(catalog.properties(kind).keySet());
+			}
+			state = exporter.start(kind, exportFormat, fields.isEmpty() ? null : fields, shards);
+		} else {
+			state = exporter.load(resume);
+		}
+		return Response.ok(exporter.output(state), state.format.mediaType)
+				.header(EXPORT_ID_HEADER, state.id)
+				.build();
+	}
+
+	/**
+	 * @return Progress of an unfinished export.
+	 */
+	@GET
+	@Path("/export/{id}")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Exporter.State exportState(
+			@PathParam("id") String id
+	) {
+		return exporter.load(id);
+	}
+
+	/**
+	 * @param mode One of {@link EntityCounter.Mode}. APPROXIMATE and PARALLEL only apply to a whole kind without
+	 *             ancestor and filters, otherwise falling back to PARALLEL and EXACT respectively.
+	 *             Response tells which mode was actually used.
+	 * @param shards Number of concurrent key ranges for PARALLEL mode, at most {@link KeyShard#MAX_SHARDS}.
+	 * @param profile Whether to return {@link Profile} in {@link #PROFILE_HEADER}. Bypasses cache.
+	 */
 	@GET
 	@Path("/entity/count")
-	@Produces("application/json")
-	public int count(
-			@QueryParam("kind") String kind,
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Response count(
+			@QueryParam("kind") @DefaultValue("") String kind,
 			@QueryParam("ancestor") @DefaultValue("") String ancestor,
 			@QueryParam("filter") List<String> filters,
-			@QueryParam("limit") @DefaultValue("10000") int limit
+			@QueryParam("limit") @DefaultValue("10000") int limit,
+			@QueryParam("cursor") @DefaultValue("") String cursor,
+			@QueryParam("mode") @DefaultValue("exact") String mode,
+			@QueryParam("shards") @DefaultValue("16") int shards,
+			@QueryParam("cache") @DefaultValue("true") boolean useCache,
+			@QueryParam("or") List<String> or,
+			@QueryParam("profile") @DefaultValue("false") boolean profile,
+			@QueryParam("project") @DefaultValue("false") boolean project
 	) throws IOException {
-		Query q = createQuery(kind, ancestor, filters);
+		Profile profiler = profile ? new Profile() : null;
+		useCache &= !profile;
+		shards = KeyShard.limit(shards);
+		EntityCounter.Mode countMode = EntityCounter.Mode.valueOf(mode.toUpperCase());
+		boolean wholeKind = !kind.isEmpty() && ancestor.isEmpty() && filters.isEmpty() && or.isEmpty();
+
+		String request =
+				ResultCache.request("entity/count", ancestor, filters, limit, cursor, countMode, shards, or);
+		if (useCache) {
+			Response cached = resultCache.get(kind, request, responseType());
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		if (countMode == EntityCounter.Mode.APPROXIMATE && wholeKind) {
+			long start = System.nanoTime();
+			EntityCounter.Result result = counter.approximate(kind);
+			if (result != null) {
+				if (profiler != null) {
+					profiler.stage("approximate", start);
+				}
+				return respond(useCache, kind, request, result, null, profiler);
+			}
+			countMode = EntityCounter.Mode.PARALLEL;
+		}
+		if (countMode == EntityCounter.Mode.PARALLEL && wholeKind) {
+			long start = System.nanoTime();
+			EntityCounter.Result result = counter.parallel(kind, shards);
+			if (profiler != null) {
+				// Batches of shards are not seen from here.
+				profiler.stage("parallel", start);
+			}
+			return respond(useCache, kind, request, result, null, profiler);
+		}
 
-		FetchOptions fetchOptions = createFetchOptions(limit);
+		List<Query> queries = queryPlans.createQueries(kind, ancestor, filters, or);
+		for(Query q : queries) {
+			q.setKeysOnly();
+		}
+		FetchOptions fetchOptions = createFetchOptions(queries.get(0), limit, cursor);
 
-		q.setKeysOnly();
-		logger.info("{} {}", q, fetchOptions);
-		PreparedQuery pq = datastore.prepare(q);
-		QueryResultIterator<Entity> iterator = pq.asQueryResultIterator(fetchOptions);
+		logger.info("{} {}", queries, fetchOptions);
+		long startMs = System.currentTimeMillis();
+		QueryResultIterator<Entity> iterator = run(queries, fetchOptions, profiler);
 		int count;
 		logger.debug("Starting counting...");
 		for(count = 0; iterator.hasNext(); count++) {
@@ -102,157 +530,486 @@ public class DBResource extends HttpServlet {
 		}
 
 		logger.debug("Counted: " + count);
-		return count;
+		EntityCounter.Result result = new EntityCounter.Result(
+				EntityCounter.Mode.EXACT, count, System.currentTimeMillis() - startMs);
+		if (count >= limit) {
+			result.lowerBound = true;
+			result.errorBound = null;
+		}
+		if (profiler != null) {
+			profiler.returned(count);
+		}
+		return respond(useCache, kind, request, result, nextCursor(iterator, count, limit), profiler);
+	}
+
+	/**
+	 * Aggregates matching entities on the server, see {@link Aggregator}.
+	 *
+	 * @param groupBy Properties to group by, a single group if none.
+	 * @param aggregates Like "count", "sum(price)", "avg(price)", "min(created)", "max(created)", "distinct(owner)".
+	 * @param shards Number of concurrent key ranges.
+	 * @param maxGroups Request fails if there are more groups.
+	 */
+	@GET
+	@Path("/aggregate")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Response aggregate(
+			@QueryParam("kind") @DefaultValue("") String kind,
+			@QueryParam("ancestor") @DefaultValue("") String ancestor,
+			@QueryParam("filters") List<String> filters,
+			@QueryParam("or") List<String> or,
+			@QueryParam("groupBy") List<String> groupBy,
+			@QueryParam("agg") List<String> aggregates,
+			@QueryParam("shards") @DefaultValue("8") int shards,
+			@QueryParam("maxGroups") @DefaultValue("10000") int maxGroups,
+			@QueryParam("cache") @DefaultValue("true") boolean useCache
+	) throws IOException {
+		if (aggregates.isEmpty()) {
+			aggregates = ImmutableList.of("count");
+		}
+
+		String request = ResultCache.request(
+				"aggregate", ancestor, filters, or, groupBy, aggregates, shards, maxGroups);
+		if (useCache) {
+			Response cached = resultCache.get(kind, request, responseType());
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		Aggregator.Result result =
+				aggregator.aggregate(kind, ancestor, filters, or, groupBy, aggregates, shards, maxGroups);
+		aggregateRequests.get(result.fetched).increment();
+		return respond(useCache, kind, request, result, null, null);
 	}
 
+	/**
+	 * Keys are fetched while previous batches are being deleted, see {@link BulkDeleter}.
+	 *
+	 * @param profile Whether to return {@link Profile} in {@link #PROFILE_HEADER}. Its "delete" stage is time
+	 *                request thread waited for deletes, i.e. when too many batches were in flight, and at the end.
+	 * @return deleted/failed counts and throughput.
+	 */
 	@DELETE
 	@Path("/entity")
-	@Produces("application/json")
-	public int delete(
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Response delete(
+			@QueryParam("kind") @DefaultValue("") String kind,
+			@QueryParam("ancestor") @DefaultValue("") String ancestor,
+			@QueryParam("filter") List<String> filters,
+			@QueryParam("limit") @DefaultValue("10000") int limit,
+			@QueryParam("cursor") @DefaultValue("") String cursor,
+			@QueryParam("or") List<String> or,
+			@QueryParam("profile") @DefaultValue("false") boolean profile,
+			@QueryParam("project") @DefaultValue("false") boolean project
+	) throws IOException {
+		Profile profiler = profile ? new Profile() : null;
+		List<Query> queries = queryPlans.createQueries(kind, ancestor, filters, or);
+		for(Query q : queries) {
+			q.setKeysOnly();
+		}
+		FetchOptions fetchOptions = createFetchOptions(queries.get(0), limit, cursor);
+
+		logger.info("{} {}", queries, fetchOptions);
+		QueryResultIterator<Entity> iterator = run(queries, fetchOptions, profiler);
+
+		BulkDeleter deleter = new BulkDeleter(
+				asyncDatastore, DELETE_BATCH_SIZE, DELETE_BATCHES_IN_FLIGHT, DELETE_RETRIES);
+		int read = 0;
+		long deleteNanos = 0;
+		while (iterator.hasNext()) {
+			Key key = iterator.next().getKey();
+			long start = System.nanoTime();
+			deleter.add(key);
+			deleteNanos += System.nanoTime() - start;
+			read++;
+		}
+		long start = System.nanoTime();
+		BulkDeleter.Result result = deleter.finish();
+		deleteNanos += System.nanoTime() - start;
+		deleted.add(result.deleted);
+		deleteFailed.add(result.failed);
+		deletesPerSecond.record((long) result.perSecond);
+		resultCache.invalidate(kind);
+		catalog.markStale();
+
+		String next = nextCursor(iterator, read, limit);
+		if (profiler != null) {
+			profiler.add("delete", deleteNanos);
+			profiler.returned(result.deleted);
+			return respondProfiled(profiler, result, next);
+		}
+		return withCursor(Response.ok(result), next);
+	}
+
+	/**
+	 * Starts deleting everything the query matches in the background, see {@link DeleteJobs}.
+	 *
+	 * @param shards Number of key ranges for a whole kind.
+	 * @return Progress, with job id to pass to {@link #job}.
+	 */
+	@POST
+	@Path("/jobs/delete")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public DeleteJobs.Progress startDeleteJob(
 			@QueryParam("kind") @DefaultValue("") String kind,
 			@QueryParam("ancestor") @DefaultValue("") String ancestor,
 			@QueryParam("filter") List<String> filters,
-			@QueryParam("limit") @DefaultValue("10000") int limit
+			@QueryParam("or") List<String> or,
+			@QueryParam("shards") @DefaultValue("8") int shards
+	) {
+		return deleteJobs.start(kind, ancestor, filters, or, shards);
+	}
+
+	/**
+	 * @return Deleted count, rate and ETA.
+	 */
+	@GET
+	@Path("/jobs/{id}")
+	@Produces({"application/json", APPLICATION_SMILE})
+	public DeleteJobs.Progress job(
+			@PathParam("id") String id
+	) {
+		return deleteJobs.progress(id);
+	}
+
+	/**
+	 * Called by task queue to run a slice of a job's shard.
+	 */
+	@POST
+	@Path("/jobs/{id}/run")
+	public Response runJob(
+			@PathParam("id") String id,
+			@FormParam("shard") int shard,
+			@FormParam("slices") int slices
+	) {
+		deleteJobs.run(id, shard, slices);
+		return Response.noContent().build();
+	}
+
+	/**
+	 * Reads NDJSON of rows, as written by {@link #list} or {@link #export}, line by line,
+	 * and puts them in batches, see {@link BulkPutter}. Lines that can't be parsed are counted as rejected.
+	 * Request deadline and size limit still apply, so large uploads should be split.
+	 *
+	 * @param kind For rows without __key__, that get allocated ids.
+	 * @return accepted/failed/rejected counts and throughput.
+	 */
+	@POST
+	@Path("/import")
+	@Consumes({APPLICATION_NDJSON, "application/json", "text/plain"})
+	@Produces({"application/json", APPLICATION_SMILE})
+	public Response importEntities(
+			@QueryParam("kind") @DefaultValue("") String kind,
+			InputStream body
 	) throws IOException {
-		Query q = createQuery(kind, ancestor, filters);
-		q.setKeysOnly();
-		FetchOptions fetchOptions = createFetchOptions(limit);
-
-		logger.info("{} {}", q, fetchOptions);
-		PreparedQuery pq = datastore.prepare(q);
-		QueryResultIterable<Entity> iterable = pq.asQueryResultIterable(fetchOptions);
-
-		int deleted = 0;
-		final int bulkSize = 1000;
-		ArrayList<Key> keysBulk = new ArrayList<>(bulkSize);
-		for(Entity entity : iterable) {
-			keysBulk.add(entity.getKey());
-			if (keysBulk.size() == bulkSize) {
-				logger.info("Deleting bulk of " + keysBulk.size());
-				datastore.delete(keysBulk);
-				deleted += keysBulk.size();
-				keysBulk.clear();
+		ObjectReader reader = objectMapper.reader(Row.class);
+		BufferedReader lines = new BufferedReader(new InputStreamReader(body, Charsets.UTF_8));
+		BulkPutter putter = new BulkPutter(
+				asyncDatastore, IMPORT_BATCH_SIZE, IMPORT_BATCHES_IN_FLIGHT, IMPORT_RETRIES);
+
+		int lineNumber = 0;
+		String line;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			// Skip blanks and trailing cursor/resume of streamed responses.
+			if (line.trim().isEmpty()
+					|| line.startsWith("{\"cursor\"")
+					|| line.startsWith("{\"resume\"")
+					|| line.startsWith("{\"profile\"")) {
+				continue;
 			}
+
+			Entity entity;
+			try {
+				Row row = reader.readValue(line);
+				entity = row.toEntity(kind);
+			} catch (IOException | RuntimeException e) {
+				putter.reject("Line " + lineNumber, e);
+				continue;
+			}
+			putter.add(entity);
 		}
-		logger.info("Deleting final bulk of " + keysBulk.size());
-		datastore.delete(keysBulk);
-		deleted += keysBulk.size();
-		logger.info("All completed.");
+		BulkPutter.Result result = putter.finish();
+		imported.add(result.accepted);
+		importFailed.add(result.failed + result.rejected);
+		importsPerSecond.record((long) result.perSecond);
+		// Rows may be of any kinds.
+		resultCache.invalidate("");
+		catalog.markStale();
+
+		return Response.ok(result).build();
+	}
+
+	/**
+	 * @return {@link Metrics} of this instance, in Prometheus text format.
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces("text/plain; version=0.0.4")
+	public StreamingOutput metrics() {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				Writer writer = new OutputStreamWriter(output, Charsets.UTF_8);
+				metrics.write(writer);
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * @return How long startup phases of this instance took, see {@link WarmupResource}.
+	 */
+	@GET
+	@Path("/startup")
+	@Produces("application/json")
+	public Startup.Report startup() {
+		return startup.report();
+	}
 
-		return deleted;
+	private void returned(int count) {
+		entitiesReturned.add(count);
 	}
 
+	private Response withCursor(Response.ResponseBuilder builder, @Nullable String cursor) {
+		if (cursor != null) {
+			builder.header(CURSOR_HEADER, cursor);
+		}
+		return builder.build();
+	}
 
-	private Query createQuery(String kind, String ancestor, List<String> filters) {
-		Query q;
-		if (ancestor.isEmpty() && kind.isEmpty()) {
-			throw new IllegalArgumentException("No 'kind' or 'ancestor' argument");
-		} else if (kind.isEmpty()) {
-			Key key = asKey(ancestor);
-			q = new Query(key);
-		} else if (ancestor.isEmpty()) {
-			q = new Query(kind);
-		} else {
-			Key key = asKey(ancestor);
-			q = new Query(kind, key);
+	/**
+	 * Response with JSON body, also putting it to {@link ResultCache} if `useCache`.
+	 *
+	 * @param profile If not null, goes to {@link #PROFILE_HEADER}, and cache is not used.
+	 */
+	private Response respond(
+			boolean useCache,
+			String kind,
+			String request,
+			Object entity,
+			@Nullable String cursor,
+			@Nullable Profile profile
+	) throws IOException {
+		if (profile != null) {
+			return respondProfiled(profile, entity, cursor);
 		}
-		addFilters(q, filters);
-		return q;
+		if (useCache) {
+			return resultCache.put(kind, request, entity, cursor, responseType());
+		}
+		return withCursor(Response.ok(entity), cursor);
+	}
+
+	/**
+	 * Serializes entity here rather than in Jersey, so that it's timed too.
+	 */
+	private Response respondProfiled(Profile profile, Object entity, @Nullable String cursor) throws IOException {
+		MediaType type = responseType();
+		ObjectMapper mapper = type.equals(SMILE_TYPE) ? smileMapper : objectMapper;
+		long start = System.nanoTime();
+		byte[] body = mapper.writeValueAsBytes(entity);
+		profile.stage("serialize", start);
+		return profiled(Response.ok(body, type), profile, body.length, cursor);
+	}
+
+	private Response profiled(Response.ResponseBuilder builder, Profile profile, long bytes, @Nullable String cursor)
+			throws IOException {
+		String json = profile.finish(bytes, objectMapper);
+		logger.info("Profile: {}", json);
+		builder.header(PROFILE_HEADER, json);
+		return withCursor(builder, cursor);
 	}
 
-	private Key asKey(String valueStr) {
-		valueStr = valueStr.trim();
-		Matcher matcher = KEY_ID_PATTERN.matcher(valueStr);
-		if (!matcher.matches()) {
-			matcher = KEY_NAME_PATTERN.matcher(valueStr);
-			if (!matcher.matches()) {
-				throw new IllegalArgumentException("Unable to parse " + valueStr +
-						" using patterns " + KEY_NAME_PATTERN + " or " + KEY_ID_PATTERN);
+	/**
+	 * Smile if client accepts it and prefers it to JSON, for responses that are serialized by us, not Jersey.
+	 */
+	private MediaType responseType() {
+		for(MediaType accepted : headers.get().getAcceptableMediaTypes()) {
+			if (accepted.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+				return MediaType.APPLICATION_JSON_TYPE;
+			} else if (accepted.isCompatible(SMILE_TYPE)) {
+				return SMILE_TYPE;
 			}
-			return KeyFactory.createKey(matcher.group(1), matcher.group(2));
 		}
-		return KeyFactory.createKey(matcher.group(1), Long.parseLong(matcher.group(2)));
+		return MediaType.APPLICATION_JSON_TYPE;
 	}
 
-	private FetchOptions createFetchOptions(int limit) {
+	/**
+	 * @return Cursor if limit was reached, so there may be more entities.
+	 */
+	@Nullable
+	private String nextCursor(QueryResultIterator<?> iterator, int read, int limit) {
+		if (read < limit) {
+			return null;
+		}
+		Cursor cursor = iterator.getCursor();
+		return cursor == null ? null : cursor.toWebSafeString();
+	}
+
+
+	/**
+	 * @param q Query as it will be run, for {@link FetchSizer} to know its shape.
+	 */
+	private FetchOptions createFetchOptions(Query q, int limit, String cursor) {
 		FetchOptions fetchOptions = withDefaults();
 		fetchOptions.limit(limit);
-		fetchOptions.chunkSize(limit < 1000 ? limit : (limit / 10)); // don't really know what to put here
+		if (!cursor.isEmpty()) {
+			fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		int chunkSize = fetchSizer.chunkSize(FetchSizer.shape(q), limit);
+		fetchOptions.chunkSize(chunkSize);
+		// Otherwise the first batch is of default size, costing an extra round trip.
+		fetchOptions.prefetchSize(chunkSize);
 		return fetchOptions;
 	}
 
-	private Query addFilters(Query q, List<String> filters) {
-		List<Filter> predicates = Lists.newArrayList();
-		logger.warn("{}", filters);
-		for(String filter : filters) {
-			Pattern typedFieldValue = Pattern.compile(
-					"^([^<>=!]+) ([<>=!]+) (String|Long|Key|Boolean|Email|Null)\\(([^\\)]*)\\)$",
-					Pattern.CASE_INSENSITIVE);
-			Matcher matcher = typedFieldValue.matcher(filter);
-			if (!matcher.matches()) {
-				throw new IllegalArgumentException("Unable to parse filter `" + filter + "`.");
-			}
-			String field = matcher.group(1);
-			String operatorS = matcher.group(2);
-			String typeS = matcher.group(3);
-			String valueStr = matcher.group(4);
-
-			Query.FilterOperator operator = toFilterOperator(operatorS);
-			Row.Value.Type type = Type.valueOf(typeS.toUpperCase());
-
-			if (field.equals(Entity.KEY_RESERVED_PROPERTY)) {
-				type = Type.KEY;
+	/**
+	 * Several queries are started at once on {@link #asyncDatastore}, and merged by {@link MergingIterator}.
+	 * Results are measured by {@link FetchSizer}, to choose better chunk size next time.
+	 *
+	 * @param profile If not null, batches of each query go there.
+	 */
+	private QueryResultIterator<Entity> run(
+			List<Query> queries,
+			FetchOptions fetchOptions,
+			@Nullable Profile profile
+	) {
+		if (profile != null) {
+			profile.queries(queries, fetchOptions);
+		}
+		if (queries.size() == 1) {
+			Query q = queries.get(0);
+			QueryResultIterator<Entity> iterator = datastore.prepare(q).asQueryResultIterator(fetchOptions);
+			if (profile != null) {
+				iterator = profile.wrap(iterator, 0, fetchOptions.getChunkSize());
 			}
+			return fetchSizer.measure(FetchSizer.shape(q), fetchOptions.getChunkSize(), iterator);
+		}
 
-			Object value = type.fromString(valueStr);
-
-			FilterPredicate predicate = new FilterPredicate(field, operator, value);
-			predicates.add(predicate);
+		if (fetchOptions.getStartCursor() != null) {
+			throw new IllegalArgumentException("Cursor is not supported with OR and IN filters");
 		}
-		if (predicates.size() == 1) {
-			q.setFilter(predicates.get(0));
-		} else if (predicates.size() > 1) {
-			q.setFilter(new CompositeFilter(CompositeFilterOperator.AND, predicates));
+		List<QueryResultIterator<Entity>> iterators = new ArrayList<>(queries.size());
+		for(Query q : queries) {
+			QueryResultIterator<Entity> iterator = asyncDatastore.prepare(q).asQueryResultIterator(fetchOptions);
+			if (profile != null) {
+				iterator = profile.wrap(iterator, iterators.size(), fetchOptions.getChunkSize());
+			}
+			iterators.add(fetchSizer.measure(FetchSizer.shape(q), fetchOptions.getChunkSize(), iterator));
 		}
-		return q;
+		return new MergingIterator(queries, iterators, fetchOptions.getLimit());
 	}
 
-	private FilterOperator toFilterOperator(String operatorS) {
-		for(FilterOperator filterOperator : FilterOperator.values()) {
-			if (filterOperator.toString().equals(operatorS)) {
-				return filterOperator;
-			}
+	/**
+	 * Wraps iterator into {@link PrefetchingIterator} if results take more than one batch, so that further batches
+	 * are fetched while previous ones are processed. Caller must {@link #close} it.
+	 */
+	private QueryResultIterator<Entity> prefetch(QueryResultIterator<Entity> iterator, FetchOptions fetchOptions) {
+		Integer limit = fetchOptions.getLimit();
+		Integer chunkSize = fetchOptions.getChunkSize();
+		if (limit == null || chunkSize == null || limit <= chunkSize) {
+			return iterator;
 		}
-		throw new IllegalArgumentException("No FilterOperator for {}" + operatorS);
+		return new PrefetchingIterator(iterator, chunkSize, parallel.executor(1));
 	}
 
-	private Row.Value toRowValue(Object value) throws IOException {
-		String valueStr;
-		if (value == null) {
-			valueStr = "null";
-		} else if (value instanceof Date) {
-			long ms = ((Date) value).getTime();
-			DateTime dt = new DateTime(ms);
-			valueStr = ISODateTimeFormat.dateTime().print(dt);
-		} else if (value instanceof EmbeddedEntity) {
-			EmbeddedEntity embeddedEntity = (EmbeddedEntity) value;
-			StringBuilder sb = new StringBuilder();
-			Map<String, Object> props = embeddedEntity.getProperties();
-			for(String key : props.keySet()) {
-				String val = String.valueOf(props.get(key));
-				sb.append(key).append(": ").append(val).append('\n');
-			}
-			valueStr = "<EmbeddedEntity:\n" + sb + ">";
-		} else {
-			valueStr = String.valueOf(value);
+	private static void close(QueryResultIterator<?> iterator) {
+		if (iterator instanceof PrefetchingIterator) {
+			((PrefetchingIterator) iterator).close();
 		}
+	}
+
+	public static class GetResult {
+		@JsonProperty
+		final EntityJson.Rows found;
 
-		Type type = value == null ? Type.NULL : Type.fromClass(value.getClass());
+		@JsonProperty
+		final List<String> missing;
 
-		if (valueStr.length() > MAX_VALUE_LENGTH) {
-			valueStr = valueStr.substring(0, MAX_VALUE_LENGTH);
+		GetResult(EntityJson.Rows found, List<String> missing) {
+			this.found = found;
+			this.missing = missing;
 		}
-		return new Row.Value(valueStr, type);
 	}
 
+	/**
+	 * Writes each entity as soon as iterator returns it, so memory doesn't depend on limit.
+	 */
+	private class NdjsonOutput implements StreamingOutput {
+		private final QueryResultIterator<Entity> iterator;
+		@Nullable
+		private final Set<String> fields;
+		private final int limit;
+		private final int flushEvery;
+		@Nullable
+		private final Profile profile;
+
+		NdjsonOutput(
+				QueryResultIterator<Entity> iterator,
+				@Nullable Set<String> fields,
+				int limit,
+				Integer chunkSize,
+				@Nullable Profile profile
+		) {
+			this.iterator = iterator;
+			this.fields = fields;
+			this.limit = limit;
+			this.flushEvery = chunkSize == null ? 100 : chunkSize;
+			this.profile = profile;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			CountingOutputStream counting = new CountingOutputStream(output);
+			// Not pretty-printed, that would break one-row-per-line.
+			JsonGenerator generator = objectMapper.getFactory().createGenerator(counting);
+			generator.setRootValueSeparator(new SerializedString("\n"));
+			EntityJson entityJson = new EntityJson();
+
+			int count = 0;
+			long writeNanos = 0;
+			long flushNanos = 0;
+			try {
+				while (iterator.hasNext()) {
+					Entity entity = iterator.next();
+					long start = System.nanoTime();
+					entityJson.write(entity, fields, generator);
+					writeNanos += System.nanoTime() - start;
+					if (++count % flushEvery == 0) {
+						start = System.nanoTime();
+						generator.flush();
+						flushNanos += System.nanoTime() - start;
+					}
+				}
+			} finally {
+				close(iterator);
+			}
+			returned(count);
+			String next = nextCursor(iterator, count, limit);
+			if (next != null) {
+				generator.writeStartObject();
+				generator.writeStringField("cursor", next);
+				generator.writeEndObject();
+			}
+			if (profile != null) {
+				profile.add("write", writeNanos);
+				// Blocks when client or network is slower than us.
+				profile.add("flush", flushNanos);
+				profile.returned(count);
+				// For the count of bytes.
+				generator.flush();
+				String json = profile.finish(counting.getCount(), objectMapper);
+				generator.writeStartObject();
+				generator.writeFieldName("profile");
+				generator.writeRawValue(json);
+				generator.writeEndObject();
+			}
+			if (count > 0 || next != null || profile != null) {
+				generator.writeRaw('\n');
+			}
+			generator.flush();
+			logger.debug("Streamed {} rows", count);
+		}
+	}
 }
@@ -7,8 +7,13 @@ import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.inject.AbstractModule;
@@ -26,10 +31,62 @@ public class DbModule extends AbstractModule {
 
     private void bindGaeServices() {
         bind(BlobstoreService.class).toInstance(BlobstoreServiceFactory.getBlobstoreService());
+        Metrics metrics = new Metrics();
+        bind(Metrics.class).toInstance(metrics);
+        bind(DatastoreService.class).toInstance(
+                new MeteredDatastoreService(DatastoreServiceFactory.getDatastoreService(), metrics));
+        bind(AsyncDatastoreService.class).toInstance(
+                new MeteredAsyncDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(), metrics));
         bind(MemcacheService.class).toInstance(MemcacheServiceFactory.getMemcacheService());
+        bind(Queue.class).toInstance(QueueFactory.getDefaultQueue());
         bind(UserService.class).toInstance(UserServiceFactory.getUserService());
     }
 
+    @Provides
+    @Named("cache.ttlSeconds")
+    private int cacheTtlSeconds() {
+        return Integer.getInteger("db.cache.ttlSeconds", 60);
+    }
+
+    @Provides
+    @Named("cache.maxEntryBytes")
+    private int cacheMaxEntryBytes() {
+        // Memcache limit is 1MB.
+        return Integer.getInteger("db.cache.maxEntryBytes", 512 * 1024);
+    }
+
+    @Provides
+    @Named("catalog.refreshSeconds")
+    private int catalogRefreshSeconds() {
+        return Integer.getInteger("db.catalog.refreshSeconds", 300);
+    }
+
+    @Provides
+    @Named("export.maxSeconds")
+    private int exportMaxSeconds() {
+        // Frontend request deadline is 60s.
+        return Integer.getInteger("db.export.maxSeconds", 50);
+    }
+
+    @Provides
+    @Named("job.sliceSeconds")
+    private int jobSliceSeconds() {
+        // Push task deadline is 10 minutes, but shorter slices report progress more often.
+        return Integer.getInteger("db.job.sliceSeconds", 30);
+    }
+
+    @Provides
+    @Named("fetch.targetBatchBytes")
+    private int fetchTargetBatchBytes() {
+        return Integer.getInteger("db.fetch.targetBatchBytes", 512 * 1024);
+    }
+
+    @Provides
+    @Named("fetch.targetBatchMillis")
+    private int fetchTargetBatchMillis() {
+        return Integer.getInteger("db.fetch.targetBatchMillis", 200);
+    }
+
     @Provides
     @Named("now")
     private DateTime now() {
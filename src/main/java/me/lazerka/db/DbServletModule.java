@@ -1,9 +1,10 @@
 package me.lazerka.db;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
-import com.google.inject.Scopes;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
+import com.google.inject.name.Names;
 import com.googlecode.objectify.ObjectifyFilter;
 import com.sun.jersey.guice.JerseyServletModule;
 import com.sun.jersey.guice.spi.container.servlet.GuiceContainer;
@@ -25,14 +26,21 @@ public class DbServletModule extends JerseyServletModule {
         // Route all requests through GuiceContainer.
         serve("/*").with(GuiceContainer.class, getJerseyParams());
 
-        // Handle "application/json" by Jackson.
-        bind(JacksonJsonProvider.class).asEagerSingleton();
-
-        ObjectMapper objectMapper = new ObjectMapper()
-            .enable(SerializationFeature.INDENT_OUTPUT);
+        // Handle "application/json" by Jackson. Compact, as responses can be large.
+        ObjectMapper objectMapper = new ObjectMapper();
         bind(ObjectMapper.class).toInstance(objectMapper);
+        bind(JacksonJsonProvider.class).toInstance(new JacksonJsonProvider(objectMapper));
+
+        // Handle "application/x-jackson-smile", binary JSON for clients that ask for it.
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        bind(ObjectMapper.class).annotatedWith(Names.named("smile")).toInstance(smileMapper);
+        bind(JacksonSmileProvider.class).toInstance(new JacksonSmileProvider(smileMapper));
 
-        bind(DBResource.class).in(Scopes.NO_SCOPE);
+        // Singletons, so that nothing is built per request.
+        bind(DBResource.class);
+        bind(WarmupResource.class);
+        bind(MetricsFilter.class);
+        bind(IllegalArgumentMapper.class);
     }
 
     private Map<String, String> getJerseyParams() {
@@ -41,6 +49,12 @@ public class DbServletModule extends JerseyServletModule {
         // Read somewhere that it's needed for GAE.
         params.put("com.sun.jersey.config.feature.DisableWADL", "true");
 
+        // gzip/deflate according to Accept-Encoding.
+        // Metrics goes after compression, so that it wraps the compressing writer and sees uncompressed bytes.
+        params.put("com.sun.jersey.spi.container.ContainerRequestFilters", MetricsFilter.class.getName());
+        params.put("com.sun.jersey.spi.container.ContainerResponseFilters",
+                CompressionFilter.class.getName() + ',' + MetricsFilter.class.getName());
+
         // This makes use of custom Auth+filters using OAuth2.
         // Commented because using GAE default authentication.
         // params.put(ResourceConfig.PROPERTY_RESOURCE_FILTER_FACTORIES, AuthFilterFactory.class.getName());
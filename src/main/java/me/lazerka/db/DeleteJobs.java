@@ -0,0 +1,454 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+
+/**
+ * Deletes what a query matches in the background, without a limit.
+ *
+ * Job is split into shards: key ranges of a whole kind, or branches of OR and IN filters, otherwise just one.
+ * Each shard is a chain of tasks in the default queue: a task deletes for `sliceSeconds`, saves shard's cursor and
+ * counts, and adds the next task. If a task fails, queue retries it from the last saved cursor, so some entities
+ * may be counted twice.
+ *
+ * A task is named after its job, shard and slice number, so that a slice is added once, and runs only if shard is
+ * still at that slice. Otherwise a retry of a slice that has already been saved would start a second chain.
+ *
+ * State is kept in datastore as {@link #JOB_KIND} with a child {@link #SHARD_KIND} per shard, so that shards
+ * don't contend on writes. It stays after the job is done, for progress to be seen.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class DeleteJobs {
+	private static final Logger logger = LoggerFactory.getLogger(DeleteJobs.class);
+
+	static final String JOB_KIND = "_DbJob";
+	static final String SHARD_KIND = "_DbJobShard";
+
+	private static final int BATCH_SIZE = 500;
+	private static final int BATCHES_IN_FLIGHT = 8;
+	private static final int RETRIES = 3;
+
+	private final DatastoreService datastore;
+	private final AsyncDatastoreService asyncDatastore;
+	private final Queue queue;
+	private final QueryPlans queryPlans;
+	private final FetchSizer fetchSizer;
+	private final EntityCounter counter;
+	private final ResultCache resultCache;
+	private final MetadataCatalog catalog;
+	private final Metrics.Counter deleted;
+	private final Metrics.Counter deleteFailed;
+	private final ObjectMapper objectMapper;
+	private final long sliceMs;
+
+	@Inject
+	public DeleteJobs(
+			DatastoreService datastore,
+			AsyncDatastoreService asyncDatastore,
+			Queue queue,
+			QueryPlans queryPlans,
+			FetchSizer fetchSizer,
+			EntityCounter counter,
+			ResultCache resultCache,
+			MetadataCatalog catalog,
+			Metrics metrics,
+			ObjectMapper objectMapper,
+			@Named("job.sliceSeconds") int sliceSeconds
+	) {
+		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
+		this.queue = queue;
+		this.queryPlans = queryPlans;
+		this.fetchSizer = fetchSizer;
+		this.counter = counter;
+		this.resultCache = resultCache;
+		this.catalog = catalog;
+		this.deleted = metrics.counter("db_deleted_entities_total", "Entities deleted.");
+		this.deleteFailed = metrics.counter("db_delete_failed_entities_total", "Entities failed to be deleted.");
+		this.objectMapper = objectMapper;
+		this.sliceMs = TimeUnit.SECONDS.toMillis(sliceSeconds);
+	}
+
+	/**
+	 * Saves new job and adds a task for each of its shards.
+	 *
+	 * @param shards Number of key ranges for a whole kind.
+	 */
+	public Progress start(String kind, String ancestor, List<String> filters, List<String> or, int shards) {
+		// Fails early on bad filters.
+		List<Query> queries = queryPlans.createQueries(kind, ancestor, filters, or);
+
+		Job job = new Job(UUID.randomUUID().toString(), kind, ancestor, filters, or);
+		List<Shard> jobShards = Lists.newArrayList();
+		if (queries.size() > 1) {
+			for(int i = 0; i < queries.size(); i++) {
+				jobShards.add(new Shard(i, new KeyShard(null, null)));
+			}
+		} else if (!kind.isEmpty() && ancestor.isEmpty() && filters.isEmpty() && or.isEmpty()) {
+			for(KeyShard range : KeyShard.split(datastore, kind, shards)) {
+				jobShards.add(new Shard(0, range));
+			}
+			EntityCounter.Result stats = counter.approximate(kind);
+			job.estimated = stats == null ? null : stats.count;
+		} else {
+			jobShards.add(new Shard(0, new KeyShard(null, null)));
+		}
+		job.shards = jobShards.size();
+
+		List<Entity> entities = Lists.newArrayListWithCapacity(jobShards.size() + 1);
+		entities.add(toEntity(jobKey(job.id), job));
+		for(int i = 0; i < jobShards.size(); i++) {
+			entities.add(toEntity(shardKey(job.id, i), jobShards.get(i)));
+		}
+		datastore.put(entities);
+
+		for(int i = 0; i < jobShards.size(); i++) {
+			enqueue(job.id, i, 0);
+		}
+		logger.info("Delete job {} of {} in {} shards", job.id, kind, jobShards.size());
+		return progress(job.id);
+	}
+
+	/**
+	 * Runs one slice of a shard, and adds a task for the next one unless shard is done.
+	 *
+	 * @param slices Number of slices of the shard done before this one, as the task was added for.
+	 */
+	public void run(String id, int index, int slices) {
+		Job job = load(jobKey(id), Job.class);
+		Shard shard = load(shardKey(id, index), Shard.class);
+		if (shard.done) {
+			logger.info("Shard {} of job {} is done already", index, id);
+			return;
+		}
+		if (shard.slices != slices) {
+			logger.info("Slice {} of shard {} of job {} is done already", slices, index, id);
+			// In case it was saved, but the next task wasn't added.
+			enqueue(id, index, shard.slices);
+			return;
+		}
+
+		Query q = queryPlans.createQueries(job.kind, job.ancestor, job.filters, job.or).get(shard.branch);
+		q.setKeysOnly();
+		shard.range().apply(q);
+
+		String shape = FetchSizer.shape(q);
+		int chunkSize = fetchSizer.chunkSize(shape, FetchSizer.MAX_CHUNK);
+		FetchOptions fetchOptions = withChunkSize(chunkSize).prefetchSize(chunkSize);
+		if (shard.cursor != null) {
+			fetchOptions.startCursor(Cursor.fromWebSafeString(shard.cursor));
+		}
+		QueryResultIterator<Entity> iterator =
+				fetchSizer.measure(shape, chunkSize, datastore.prepare(q).asQueryResultIterator(fetchOptions));
+
+		long deadline = System.currentTimeMillis() + sliceMs;
+		BulkDeleter deleter = new BulkDeleter(asyncDatastore, BATCH_SIZE, BATCHES_IN_FLIGHT, RETRIES);
+		int read = 0;
+		boolean more;
+		// At least one, so that the chain always moves on.
+		while ((more = iterator.hasNext()) && (read == 0 || System.currentTimeMillis() < deadline)) {
+			deleter.add(iterator.next().getKey());
+			read++;
+		}
+		BulkDeleter.Result result = deleter.finish();
+
+		Cursor cursor = iterator.getCursor();
+		shard.cursor = cursor == null ? null : cursor.toWebSafeString();
+		shard.deleted += result.deleted;
+		shard.failed += result.failed;
+		shard.slices++;
+		shard.done = !more;
+		if (!save(shardKey(id, index), shard, slices)) {
+			logger.info("Slice {} of shard {} of job {} was saved by another task", slices, index, id);
+			return;
+		}
+
+		deleted.add(result.deleted);
+		deleteFailed.add(result.failed);
+		resultCache.invalidate(job.kind);
+		catalog.markStale();
+
+		if (more) {
+			enqueue(id, index, shard.slices);
+		} else {
+			logger.info("Shard {} of job {} is done, {} deleted in {} slices", index, id, shard.deleted, shard.slices);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if there's no such job.
+	 */
+	public Progress progress(String id) {
+		Key jobKey = jobKey(id);
+		Job job = load(jobKey, Job.class);
+
+		List<Key> shardKeys = Lists.newArrayListWithCapacity(job.shards);
+		for(int i = 0; i < job.shards; i++) {
+			shardKeys.add(shardKey(id, i));
+		}
+		Map<Key, Entity> shardEntities = datastore.get(shardKeys);
+
+		Progress result = new Progress(job);
+		long updated = job.created;
+		for(Entity entity : shardEntities.values()) {
+			Shard shard = fromEntity(entity, Shard.class);
+			result.deleted += shard.deleted;
+			result.failed += shard.failed;
+			result.slices += shard.slices;
+			if (shard.done) {
+				result.shardsDone++;
+			}
+			updated = Math.max(updated, ((Date) entity.getProperty("updated")).getTime());
+		}
+		result.done = result.shardsDone == job.shards;
+
+		long end = result.done ? updated : System.currentTimeMillis();
+		result.seconds = (end - job.created) / 1000d;
+		result.perSecond = result.seconds == 0 ? 0 : result.deleted / result.seconds;
+		if (!result.done && job.estimated != null && result.perSecond > 0) {
+			result.etaSeconds = Math.max(0, job.estimated - result.deleted) / result.perSecond;
+		}
+		return result;
+	}
+
+	/**
+	 * Saves shard, unless another task has saved this slice already.
+	 *
+	 * Shards are in the entity group of their job, so transactions of other shards may conflict, and are retried.
+	 *
+	 * @param slices Number of slices done before this one.
+	 * @return Whether saved.
+	 */
+	private boolean save(Key key, Shard shard, int slices) {
+		for(int attempt = 0; ; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Shard saved = fromEntity(datastore.get(txn, key), Shard.class);
+				if (saved.slices != slices) {
+					return false;
+				}
+				datastore.put(txn, toEntity(key, shard));
+				txn.commit();
+				return true;
+			} catch (EntityNotFoundException e) {
+				throw new IllegalArgumentException("Unknown job or its shard " + key);
+			} catch (ConcurrentModificationException e) {
+				if (attempt == RETRIES) {
+					throw e;
+				}
+				logger.info("Retrying to save shard {}: {}", key, e.getMessage());
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a task for a slice, unless it's been added already.
+	 *
+	 * @param slices Number of slices of the shard done before this one.
+	 */
+	private void enqueue(String id, int index, int slices) {
+		try {
+			queue.add(TaskOptions.Builder
+					.withUrl("/db/jobs/" + id + "/run")
+					.taskName(id + "-" + index + "-" + slices)
+					.param("shard", String.valueOf(index))
+					.param("slices", String.valueOf(slices)));
+		} catch (TaskAlreadyExistsException e) {
+			logger.info("Task for slice {} of shard {} of job {} is added already", slices, index, id);
+		}
+	}
+
+	private static Key jobKey(String id) {
+		return KeyFactory.createKey(JOB_KIND, id);
+	}
+
+	private static Key shardKey(String id, int index) {
+		return KeyFactory.createKey(jobKey(id), SHARD_KIND, index + 1);
+	}
+
+	private <T> T load(Key key, Class<T> type) {
+		try {
+			return fromEntity(datastore.get(key), type);
+		} catch (EntityNotFoundException e) {
+			throw new IllegalArgumentException("Unknown job or its shard " + key);
+		}
+	}
+
+	private <T> T fromEntity(Entity entity, Class<T> type) {
+		try {
+			return objectMapper.readValue(((Text) entity.getProperty("state")).getValue(), type);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Entity toEntity(Key key, Object state) {
+		Entity entity = new Entity(key);
+		try {
+			entity.setUnindexedProperty("state", new Text(objectMapper.writeValueAsString(state)));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		entity.setProperty("updated", new Date());
+		return entity;
+	}
+
+	/**
+	 * What to delete.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	static class Job {
+		@JsonProperty
+		String id;
+
+		@JsonProperty
+		String kind;
+
+		@JsonProperty
+		String ancestor;
+
+		@JsonProperty
+		List<String> filters;
+
+		@JsonProperty
+		List<String> or;
+
+		@JsonProperty
+		int shards;
+
+		/** Entities of kind from statistics, if it's a whole kind. */
+		@JsonProperty
+		@Nullable
+		Long estimated;
+
+		@JsonProperty
+		long created;
+
+		private Job() {}
+
+		Job(String id, String kind, String ancestor, List<String> filters, List<String> or) {
+			this.id = id;
+			this.kind = kind;
+			this.ancestor = ancestor;
+			this.filters = ImmutableList.copyOf(filters);
+			this.or = ImmutableList.copyOf(or);
+			this.created = System.currentTimeMillis();
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	static class Shard {
+		/** Which of the queries of {@link QueryPlans#createQueries}. */
+		@JsonProperty
+		int branch;
+
+		/** Web-safe key, null if unbounded. */
+		@JsonProperty
+		@Nullable
+		String start;
+
+		@JsonProperty
+		@Nullable
+		String end;
+
+		/** Web-safe cursor to continue from, null to start from the beginning. */
+		@JsonProperty
+		@Nullable
+		String cursor;
+
+		@JsonProperty
+		long deleted;
+
+		@JsonProperty
+		long failed;
+
+		@JsonProperty
+		int slices;
+
+		@JsonProperty
+		boolean done;
+
+		private Shard() {}
+
+		Shard(int branch, KeyShard range) {
+			this.branch = branch;
+			start = range.getStart() == null ? null : KeyFactory.keyToString(range.getStart());
+			end = range.getEnd() == null ? null : KeyFactory.keyToString(range.getEnd());
+		}
+
+		KeyShard range() {
+			return new KeyShard(
+					start == null ? null : KeyFactory.stringToKey(start),
+					end == null ? null : KeyFactory.stringToKey(end));
+		}
+	}
+
+	/**
+	 * What `/db/jobs/{id}` returns.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Progress {
+		@JsonProperty
+		final Job job;
+
+		@JsonProperty
+		long deleted;
+
+		@JsonProperty
+		long failed;
+
+		@JsonProperty
+		int slices;
+
+		@JsonProperty
+		int shardsDone;
+
+		@JsonProperty
+		boolean done;
+
+		/** Since start, till now or till done. */
+		@JsonProperty
+		double seconds;
+
+		@JsonProperty
+		double perSecond;
+
+		/** If running and there's an estimate of total. */
+		@JsonProperty
+		@Nullable
+		Double etaSeconds;
+
+		Progress(Job job) {
+			this.job = job;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.collect.Lists;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+
+/**
+ * Counting that doesn't walk the whole kind in a single iterator.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class EntityCounter {
+	private static final Logger logger = LoggerFactory.getLogger(EntityCounter.class);
+
+	static final String STAT_KIND = "__Stat_Kind__";
+	static final String STAT_KIND_ROOT = "__Stat_Kind_IsRootEntity__";
+	static final String STAT_KIND_NON_ROOT = "__Stat_Kind_NotRootEntity__";
+
+	private static final int KEYS_CHUNK_SIZE = 1000;
+
+	public enum Mode {
+		/** Single keys-only query, respects limit and cursor. */
+		EXACT,
+		/** Keys-only queries over __scatter__ shards run concurrently. Whole kind, no filters. */
+		PARALLEL,
+		/** From datastore statistics, no filters. Statistics are updated about once a day. */
+		APPROXIMATE,
+	}
+
+	private final DatastoreService datastore;
+	private final Parallel parallel;
+
+	@Inject
+	public EntityCounter(DatastoreService datastore, Parallel parallel) {
+		this.datastore = datastore;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * @return null if there are no statistics for the kind yet.
+	 */
+	@Nullable
+	public Result approximate(String kind) {
+		long startMs = System.currentTimeMillis();
+
+		Entity stat = latestStat(STAT_KIND, kind);
+		long count;
+		Date timestamp;
+		if (stat != null) {
+			count = (Long) stat.getProperty("count");
+			timestamp = (Date) stat.getProperty("timestamp");
+		} else {
+			// Some apps only have the split statistics.
+			Entity root = latestStat(STAT_KIND_ROOT, kind);
+			Entity nonRoot = latestStat(STAT_KIND_NON_ROOT, kind);
+			if (root == null && nonRoot == null) {
+				logger.info("No statistics for {}", kind);
+				return null;
+			}
+			count = 0;
+			timestamp = null;
+			for(Entity entity : new Entity[] {root, nonRoot}) {
+				if (entity != null) {
+					count += (Long) entity.getProperty("count");
+					timestamp = (Date) entity.getProperty("timestamp");
+				}
+			}
+		}
+
+		Result result = new Result(Mode.APPROXIMATE, count, System.currentTimeMillis() - startMs);
+		result.errorBound = null;
+		result.asOf = timestamp == null ? null : new DateTime(timestamp).toString();
+		return result;
+	}
+
+	@Nullable
+	private Entity latestStat(String statKind, String kind) {
+		Query q = new Query(statKind)
+				.setFilter(new FilterPredicate("kind_name", FilterOperator.EQUAL, kind));
+		Entity latest = null;
+		for(Entity entity : datastore.prepare(q).asIterable()) {
+			if (latest == null || ((Date) entity.getProperty("timestamp"))
+					.after((Date) latest.getProperty("timestamp"))) {
+				latest = entity;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Exact count of the whole kind, split into `shards` key ranges counted concurrently.
+	 */
+	public Result parallel(final String kind, int shards) {
+		long startMs = System.currentTimeMillis();
+
+		List<KeyShard> keyShards = KeyShard.split(datastore, kind, shards);
+		List<Callable<Long>> tasks = Lists.newArrayListWithCapacity(keyShards.size());
+		for(final KeyShard shard : keyShards) {
+			tasks.add(new Callable<Long>() {
+				@Override
+				public Long call() {
+					return countShard(kind, shard);
+				}
+			});
+		}
+
+		long count = 0;
+		for(Long shardCount : parallel.invokeAll(tasks, keyShards.size())) {
+			count += shardCount;
+		}
+		Result result = new Result(Mode.PARALLEL, count, System.currentTimeMillis() - startMs);
+		result.shards = keyShards.size();
+		return result;
+	}
+
+	private long countShard(String kind, KeyShard shard) {
+		Query q = shard.apply(new Query(kind).setKeysOnly());
+		long count = 0;
+		for(Entity ignored : datastore.prepare(q).asIterable(withChunkSize(KEYS_CHUNK_SIZE))) {
+			count++;
+		}
+		logger.debug("Shard {}: {}", shard, count);
+		return count;
+	}
+
+	public static class Result {
+		@JsonProperty
+		Mode mode;
+
+		@JsonProperty
+		long count;
+
+		/**
+		 * Max difference from the actual count, null if unknown.
+		 * Writes made concurrently with counting are not taken into account.
+		 */
+		@JsonProperty
+		@Nullable
+		Long errorBound = 0L;
+
+		/** Whether limit was reached, so actual count may be greater. */
+		@JsonProperty
+		boolean lowerBound;
+
+		/** When statistics were gathered, for {@link Mode#APPROXIMATE}. */
+		@JsonProperty
+		@Nullable
+		String asOf;
+
+		@JsonProperty
+		int shards = 1;
+
+		@JsonProperty
+		long millis;
+
+		Result(Mode mode, long count, long millis) {
+			this.mode = mode;
+			this.count = count;
+			this.millis = millis;
+		}
+	}
+}
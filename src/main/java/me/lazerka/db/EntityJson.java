@@ -0,0 +1,219 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.NumberOutput;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import me.lazerka.db.Row.Value.Type;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes entity to JSON exactly as its {@link Row} would be serialized, but without creating the Row, its
+ * {@link Row.Value}s and most of the value strings: numbers, dates and keys are formatted into a reused buffer,
+ * long strings are truncated while being written. Types without a fast path go through {@link Row.Value#format}.
+ *
+ * Not thread-safe, as the buffer is reused. Cheap to create.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class EntityJson {
+	private static final SerializableString VALUE = new SerializedString("value");
+	private static final SerializableString TYPE = new SerializedString("type");
+	private static final SerializableString NULL = new SerializedString("null");
+	private static final SerializableString TRUE = new SerializedString("true");
+	private static final SerializableString FALSE = new SerializedString("false");
+	private static final SerializableString KEY_PROPERTY = new SerializedString(Entity.KEY_RESERVED_PROPERTY);
+
+	private static final SerializableString[] TYPE_NAMES = new SerializableString[Type.values().length];
+	static {
+		for(Type type : Type.values()) {
+			TYPE_NAMES[type.ordinal()] = new SerializedString(type.name());
+		}
+	}
+
+	private static final DateTimeFormatter DATE_FORMAT = ISODateTimeFormat.dateTime();
+
+	private final int maxLength;
+	private char[] buffer = new char[64];
+	private final StringBuilder builder = new StringBuilder(64);
+
+	public EntityJson() {
+		this(Row.Value.MAX_LENGTH);
+	}
+
+	/**
+	 * @param maxLength Values are truncated to that many characters.
+	 */
+	public EntityJson(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param fields Properties to write, null for all.
+	 */
+	public void write(Entity entity, @Nullable Set<String> fields, JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+		generator.writeFieldName(KEY_PROPERTY);
+		writeValue(entity.getKey(), generator);
+
+		if (fields == null) {
+			for(Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+				generator.writeFieldName(entry.getKey());
+				writeValue(entry.getValue(), generator);
+			}
+		} else {
+			for(String field : fields) {
+				if (entity.hasProperty(field)) {
+					generator.writeFieldName(field);
+					writeValue(entity.getProperty(field), generator);
+				}
+			}
+		}
+		generator.writeEndObject();
+	}
+
+	private void writeValue(@Nullable Object value, JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+		generator.writeFieldName(VALUE);
+
+		Type type = Row.Value.typeOf(value);
+		if (type == null) {
+			generator.writeString(Row.Value.format(value, maxLength));
+		} else {
+			switch (type) {
+				case NULL:
+					generator.writeString(NULL);
+					break;
+				case INTEGER:
+					int length = NumberOutput.outputLong(((Number) value).longValue(), buffer(20), 0);
+					writeTruncated(buffer, length, generator);
+					break;
+				case BOOLEAN:
+					generator.writeString((Boolean) value ? TRUE : FALSE);
+					break;
+				case STRING:
+					writeTruncated((String) value, generator);
+					break;
+				case TEXT:
+					writeTruncated(((Text) value).getValue(), generator);
+					break;
+				case DATETIME:
+					builder.setLength(0);
+					DATE_FORMAT.printTo(builder, ((Date) value).getTime());
+					writeBuilder(generator);
+					break;
+				case KEY:
+					builder.setLength(0);
+					appendKey((Key) value);
+					writeBuilder(generator);
+					break;
+				default:
+					generator.writeString(Row.Value.format(value, maxLength));
+			}
+		}
+
+		generator.writeFieldName(TYPE);
+		if (type == null) {
+			generator.writeNull();
+		} else {
+			generator.writeString(TYPE_NAMES[type.ordinal()]);
+		}
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Same as {@link Key#toString()}.
+	 */
+	private void appendKey(Key key) {
+		if (key.getParent() != null) {
+			appendKey(key.getParent());
+			builder.append('/');
+		} else if (!key.getNamespace().isEmpty()) {
+			builder.append('!').append(key.getNamespace()).append(':');
+		}
+		builder.append(key.getKind()).append('(');
+		if (key.getName() != null) {
+			builder.append('"').append(key.getName()).append('"');
+		} else if (key.isComplete()) {
+			builder.append(key.getId());
+		} else {
+			builder.append("no-id-yet");
+		}
+		builder.append(')');
+	}
+
+	private void writeBuilder(JsonGenerator generator) throws IOException {
+		int length = builder.length();
+		builder.getChars(0, length, buffer(length), 0);
+		writeTruncated(buffer, length, generator);
+	}
+
+	private void writeTruncated(String value, JsonGenerator generator) throws IOException {
+		if (value.length() <= maxLength) {
+			generator.writeString(value);
+		} else {
+			value.getChars(0, maxLength, buffer(maxLength), 0);
+			generator.writeString(buffer, 0, maxLength);
+		}
+	}
+
+	private void writeTruncated(char[] chars, int length, JsonGenerator generator) throws IOException {
+		generator.writeString(chars, 0, Math.min(length, maxLength));
+	}
+
+	private char[] buffer(int size) {
+		if (buffer.length < size) {
+			buffer = new char[Math.max(size, buffer.length * 2)];
+		}
+		return buffer;
+	}
+
+	/**
+	 * List of entities that serializes as a list of {@link Row}.
+	 */
+	@JsonSerialize(using = Rows.Serializer.class)
+	public static class Rows {
+		final List<Entity> entities;
+		@Nullable
+		final Set<String> fields;
+
+		/**
+		 * @param fields Properties to write, null for all.
+		 */
+		public Rows(List<Entity> entities, @Nullable Set<String> fields) {
+			this.entities = entities;
+			this.fields = fields;
+		}
+
+		public int size() {
+			return entities.size();
+		}
+
+		static class Serializer extends JsonSerializer<Rows> {
+			@Override
+			public void serialize(Rows rows, JsonGenerator generator, SerializerProvider provider)
+					throws IOException {
+				EntityJson entityJson = new EntityJson();
+				generator.writeStartArray();
+				for(Entity entity : rows.entities) {
+					entityJson.write(entity, rows.fields, generator);
+				}
+				generator.writeEndArray();
+			}
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.appengine.api.datastore.*;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+
+/**
+ * Dumps a whole kind, reading its key-range shards concurrently.
+ *
+ * Shard readers put formatted lines to a bounded queue, which the response thread drains, so memory doesn't depend
+ * on the kind size. After each chunk a reader also enqueues its cursor; when the response thread gets to it, all
+ * the shard's lines before it are written, so the cursor is saved to export {@link State}.
+ *
+ * Export stops after `maxSeconds`, or if a shard fails, or client disconnects. Then it can be resumed by id from
+ * saved cursors. Rows after the last saved cursor are written again on resume, so consumer should dedupe by __key__.
+ * State is kept in datastore as {@link #STATE_KIND}, and deleted once export is finished.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class Exporter {
+	private static final Logger logger = LoggerFactory.getLogger(Exporter.class);
+
+	static final String STATE_KIND = "_DbExport";
+
+	private static final int CHUNK_SIZE = 500;
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final long SAVE_EVERY_MS = 5000;
+
+	public enum Format {
+		NDJSON(DBResource.APPLICATION_NDJSON),
+		CSV("text/csv");
+
+		final String mediaType;
+
+		Format(String mediaType) {
+			this.mediaType = mediaType;
+		}
+	}
+
+	private final DatastoreService datastore;
+	private final Parallel parallel;
+	private final ObjectMapper objectMapper;
+	private final long maxMs;
+
+	@Inject
+	public Exporter(
+			DatastoreService datastore,
+			Parallel parallel,
+			ObjectMapper objectMapper,
+			@Named("export.maxSeconds") int maxSeconds
+	) {
+		this.datastore = datastore;
+		this.parallel = parallel;
+		this.objectMapper = objectMapper;
+		this.maxMs = TimeUnit.SECONDS.toMillis(maxSeconds);
+	}
+
+	/**
+	 * Splits the kind into shards and saves new export state.
+	 *
+	 * @param fields Properties to export, null for all. Required for CSV.
+	 */
+	public State start(String kind, Format format, @Nullable List<String> fields, int shards) {
+		if (kind.isEmpty()) {
+			throw new IllegalArgumentException("Kind is required");
+		}
+		if (format == Format.CSV && fields == null) {
+			throw new IllegalArgumentException("Fields are required for CSV");
+		}
+
+		State state = new State(UUID.randomUUID().toString(), kind, format, fields);
+		for(KeyShard range : KeyShard.split(datastore, kind, shards)) {
+			state.shards.add(new Shard(range));
+		}
+		save(state);
+		logger.info("Export {} of {} in {} shards", state.id, kind, state.shards.size());
+		return state;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if there's no such export, or it's finished.
+	 */
+	public State load(String id) {
+		try {
+			Entity entity = datastore.get(KeyFactory.createKey(STATE_KIND, id));
+			return objectMapper.readValue(((Text) entity.getProperty("state")).getValue(), State.class);
+		} catch (EntityNotFoundException e) {
+			throw new IllegalArgumentException("Unknown or finished export " + id);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public StreamingOutput output(State state) {
+		return new Output(state);
+	}
+
+	private void save(State state) {
+		Entity entity = new Entity(STATE_KIND, state.id);
+		try {
+			entity.setUnindexedProperty("state", new Text(objectMapper.writeValueAsString(state)));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		entity.setProperty("updated", new Date());
+		datastore.put(entity);
+	}
+
+	/**
+	 * Progress of an export, also what `/db/export/{id}` returns.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	@JsonIgnoreProperties(ignoreUnknown = true) // rows and done are computed.
+	public static class State {
+		@JsonProperty
+		String id;
+
+		@JsonProperty
+		String kind;
+
+		@JsonProperty
+		Format format;
+
+		@JsonProperty
+		@Nullable
+		List<String> fields;
+
+		@JsonProperty
+		List<Shard> shards = Lists.newArrayList();
+
+		private State() {}
+
+		State(String id, String kind, Format format, @Nullable List<String> fields) {
+			this.id = id;
+			this.kind = kind;
+			this.format = format;
+			this.fields = fields == null ? null : ImmutableList.copyOf(fields);
+		}
+
+		/** Rows written so far, up to the saved cursors. */
+		@JsonProperty
+		long rows() {
+			long result = 0;
+			for(Shard shard : shards) {
+				result += shard.rows;
+			}
+			return result;
+		}
+
+		@JsonProperty
+		boolean done() {
+			for(Shard shard : shards) {
+				if (!shard.done) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	static class Shard {
+		/** Web-safe key, null if unbounded. */
+		@JsonProperty
+		@Nullable
+		String start;
+
+		@JsonProperty
+		@Nullable
+		String end;
+
+		/** Web-safe cursor to continue from, null to start from the beginning. */
+		@JsonProperty
+		@Nullable
+		String cursor;
+
+		@JsonProperty
+		long rows;
+
+		@JsonProperty
+		boolean done;
+
+		private Shard() {}
+
+		Shard(KeyShard range) {
+			start = range.getStart() == null ? null : KeyFactory.keyToString(range.getStart());
+			end = range.getEnd() == null ? null : KeyFactory.keyToString(range.getEnd());
+		}
+
+		KeyShard range() {
+			return new KeyShard(
+					start == null ? null : KeyFactory.stringToKey(start),
+					end == null ? null : KeyFactory.stringToKey(end));
+		}
+	}
+
+	/**
+	 * Queued by {@link ShardReader} after lines of a chunk.
+	 */
+	private static class Checkpoint {
+		final Shard shard;
+		@Nullable
+		final String cursor;
+		final int rows;
+		final boolean done;
+
+		Checkpoint(Shard shard, @Nullable String cursor, int rows, boolean done) {
+			this.shard = shard;
+			this.cursor = cursor;
+			this.rows = rows;
+			this.done = done;
+		}
+	}
+
+	/**
+	 * Queued by {@link ShardReader} if it failed.
+	 */
+	private static class Failure {
+		final RuntimeException exception;
+
+		Failure(RuntimeException exception) {
+			this.exception = exception;
+		}
+	}
+
+	private class Output implements StreamingOutput {
+		private final State state;
+		@Nullable
+		private final Set<String> fields;
+		private final ObjectWriter rowWriter;
+
+		Output(State state) {
+			this.state = state;
+			this.fields = state.fields == null ? null : ImmutableSet.copyOf(state.fields);
+			// Pretty-printing would break one-row-per-line.
+			this.rowWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			long startMs = System.currentTimeMillis();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, Charsets.UTF_8));
+			if (state.format == Format.CSV) {
+				writer.write(csvHeader());
+			}
+
+			List<Shard> pending = Lists.newArrayList();
+			for(Shard shard : state.shards) {
+				if (!shard.done) {
+					pending.add(shard);
+				}
+			}
+			if (pending.isEmpty()) {
+				finish(writer, startMs, 0);
+				return;
+			}
+
+			BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+			// Shards of exports saved before the cap may be more, those wait for a free thread.
+			ExecutorService executor = parallel.executor(Math.min(pending.size(), KeyShard.MAX_SHARDS));
+			int running = pending.size();
+			long written = 0;
+			try {
+				for(Shard shard : pending) {
+					executor.submit(new ShardReader(shard, queue));
+				}
+
+				long savedMs = startMs;
+				while (running > 0) {
+					long leftMs = startMs + maxMs - System.currentTimeMillis();
+					Object item = leftMs > 0 ? queue.poll(leftMs, TimeUnit.MILLISECONDS) : null;
+					if (item == null) {
+						logger.info("Export {} is out of time, {} shards left", state.id, running);
+						break;
+					} else if (item instanceof String) {
+						writer.write((String) item);
+						written++;
+					} else if (item instanceof Checkpoint) {
+						Checkpoint checkpoint = (Checkpoint) item;
+						checkpoint.shard.rows += checkpoint.rows;
+						checkpoint.shard.cursor = checkpoint.cursor;
+						checkpoint.shard.done = checkpoint.done;
+						if (checkpoint.done) {
+							running--;
+						}
+						writer.flush();
+						if (System.currentTimeMillis() - savedMs > SAVE_EVERY_MS) {
+							save(state);
+							savedMs = System.currentTimeMillis();
+						}
+					} else {
+						throw ((Failure) item).exception;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} finally {
+				executor.shutdownNow();
+				if (running > 0) {
+					// Also if client disconnected, so that it can resume.
+					save(state);
+				}
+			}
+
+			finish(writer, startMs, written);
+		}
+
+		private void finish(Writer writer, long startMs, long written) throws IOException {
+			if (state.done()) {
+				datastore.delete(KeyFactory.createKey(STATE_KIND, state.id));
+			} else if (state.format == Format.NDJSON) {
+				// Headers are sent already, so tell client to resume in the last line.
+				writer.write("{\"resume\":" + objectMapper.writeValueAsString(state.id) + "}\n");
+			}
+			writer.flush();
+
+			long millis = System.currentTimeMillis() - startMs;
+			logger.info("Export {} wrote {} rows in {}ms, done: {}", state.id, written, millis, state.done());
+		}
+
+		private String csvHeader() {
+			StringBuilder sb = new StringBuilder(Entity.KEY_RESERVED_PROPERTY);
+			for(String field : state.fields) {
+				sb.append(',');
+				appendCsv(sb, field);
+			}
+			return sb.append('\n').toString();
+		}
+
+		/**
+		 * Called from reader threads, so that formatting is concurrent too.
+		 */
+		String line(Entity entity) throws IOException {
+			if (state.format == Format.NDJSON) {
+				return rowWriter.writeValueAsString(Row.of(entity, fields, Integer.MAX_VALUE)) + '\n';
+			}
+
+			StringBuilder sb = new StringBuilder();
+			appendCsv(sb, Row.Value.format(entity.getKey(), Integer.MAX_VALUE));
+			Map<String, Object> properties = entity.getProperties();
+			for(String field : state.fields) {
+				sb.append(',');
+				// Missing property is empty, null value is "null".
+				if (properties.containsKey(field)) {
+					appendCsv(sb, Row.Value.format(properties.get(field), Integer.MAX_VALUE));
+				}
+			}
+			return sb.append('\n').toString();
+		}
+
+		private void appendCsv(StringBuilder sb, String value) {
+			boolean quote = false;
+			for(int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (quote) {
+				sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+			} else {
+				sb.append(value);
+			}
+		}
+
+		/**
+		 * Reads one shard from its cursor, putting lines and checkpoints to the queue.
+		 */
+		private class ShardReader implements Callable<Void> {
+			private final Shard shard;
+			@Nullable
+			private final String cursor;
+			private final BlockingQueue<Object> queue;
+
+			ShardReader(Shard shard, BlockingQueue<Object> queue) {
+				this.shard = shard;
+				this.cursor = shard.cursor;
+				this.queue = queue;
+			}
+
+			@Override
+			public Void call() throws InterruptedException {
+				try {
+					Query q = shard.range().apply(new Query(state.kind));
+					FetchOptions fetchOptions = withChunkSize(CHUNK_SIZE).prefetchSize(CHUNK_SIZE);
+					if (cursor != null) {
+						fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+					}
+
+					QueryResultIterator<Entity> iterator = datastore.prepare(q).asQueryResultIterator(fetchOptions);
+					int rows = 0;
+					while (iterator.hasNext()) {
+						queue.put(line(iterator.next()));
+						if (++rows == CHUNK_SIZE) {
+							queue.put(new Checkpoint(shard, iterator.getCursor().toWebSafeString(), rows, false));
+							rows = 0;
+						}
+					}
+					queue.put(new Checkpoint(shard, null, rows, true));
+				} catch (IOException e) {
+					queue.put(new Failure(new IllegalStateException(e)));
+				} catch (RuntimeException e) {
+					logger.warn("Export {} shard {} failed", state.id, shard.range(), e);
+					queue.put(new Failure(e));
+				}
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks chunk size of queries, so that a batch is about target bytes and takes about target time to fetch.
+ *
+ * Learns from queries it measured, separately for each kind and fetch type (keys, projection or entities), as
+ * a keys-only batch may be thousands of times smaller than a batch of wide entities. Until a shape is measured,
+ * falls back to a fraction of limit.
+ *
+ * In memory of this instance only.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class FetchSizer {
+	private static final Logger logger = LoggerFactory.getLogger(FetchSizer.class);
+
+	static final int MIN_CHUNK = 10;
+	static final int MAX_CHUNK = 5000;
+
+	/** Size of one in that many entities is measured, as that requires converting it to protobuf. */
+	private static final int SAMPLE_EVERY = 64;
+
+	/** Weight of the latest query in averages. */
+	private static final double WEIGHT = 0.3;
+
+	private final int targetBytes;
+	private final int targetMillis;
+	private final ConcurrentMap<String, Choice> choices = new ConcurrentHashMap<>();
+
+	@Inject
+	public FetchSizer(
+			@Named("fetch.targetBatchBytes") int targetBytes,
+			@Named("fetch.targetBatchMillis") int targetMillis
+	) {
+		this.targetBytes = targetBytes;
+		this.targetMillis = targetMillis;
+	}
+
+	/**
+	 * @return Like "Kind entities", or "Kind keys", or "* projection" for kindless.
+	 */
+	public static String shape(Query query) {
+		String kind = query.getKind() == null ? ResultCache.ANY_KIND : query.getKind();
+		if (query.isKeysOnly()) {
+			return kind + " keys";
+		} else if (!query.getProjections().isEmpty()) {
+			return kind + " projection";
+		} else {
+			return kind + " entities";
+		}
+	}
+
+	/**
+	 * Also to be used as prefetch size, so that the first batch is of the same size.
+	 */
+	public int chunkSize(String shape, int limit) {
+		Choice choice = choices.get(shape);
+		if (choice == null) {
+			return limit < 1000 ? limit : (limit / 10);
+		}
+		return Math.min(choice.chunkSize, limit);
+	}
+
+	/**
+	 * Wraps iterator to measure time spent fetching and sizes of entities. Once exhausted, that goes to
+	 * averages of the shape, and chunk size is chosen again.
+	 *
+	 * @param chunkSize The one iterator was created with.
+	 */
+	public QueryResultIterator<Entity> measure(String shape, int chunkSize, QueryResultIterator<Entity> iterator) {
+		return new MeasuringIterator(shape, chunkSize, iterator);
+	}
+
+	/**
+	 * @return Current choices by shape, for checking they converge.
+	 */
+	public SortedMap<String, Choice> choices() {
+		SortedMap<String, Choice> result = Maps.newTreeMap();
+		for(Map.Entry<String, Choice> entry : choices.entrySet()) {
+			synchronized (entry.getValue()) {
+				result.put(entry.getKey(), entry.getValue().copy());
+			}
+		}
+		return result;
+	}
+
+	private void record(String shape, int entities, int batches, long sampledBytes, int samples, long nanos) {
+		Choice choice = choices.get(shape);
+		if (choice == null) {
+			Choice created = new Choice();
+			choice = choices.putIfAbsent(shape, created);
+			if (choice == null) {
+				choice = created;
+			}
+		}
+
+		double entityBytes = (double) sampledBytes / samples;
+		double batchMillis = nanos / 1e6 / batches;
+		// Per entity, so that batches of different sizes are comparable.
+		double entityMillis = batchMillis * batches / entities;
+
+		synchronized (choice) {
+			if (choice.queries == 0) {
+				choice.entityBytes = entityBytes;
+				choice.entityMillis = entityMillis;
+			} else {
+				choice.entityBytes += WEIGHT * (entityBytes - choice.entityBytes);
+				choice.entityMillis += WEIGHT * (entityMillis - choice.entityMillis);
+			}
+			choice.batchMillis = batchMillis;
+			choice.queries++;
+
+			double bySize = targetBytes / Math.max(choice.entityBytes, 1);
+			double byTime = targetMillis / Math.max(choice.entityMillis, 1e-6);
+			choice.chunkSize = (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, Math.min(bySize, byTime)));
+
+			logger.debug("{}: {} entities of {} bytes in {}ms batches, chunk size now {}",
+					shape, entities, (long) entityBytes, (long) batchMillis, choice.chunkSize);
+		}
+	}
+
+	public static class Choice {
+		@JsonProperty
+		int chunkSize;
+
+		/** Average protobuf size. */
+		@JsonProperty
+		double entityBytes;
+
+		/** Average time to fetch, per entity. */
+		@JsonProperty
+		double entityMillis;
+
+		/** Per batch, of the last measured query. */
+		@JsonProperty
+		double batchMillis;
+
+		/** Measured so far. */
+		@JsonProperty
+		long queries;
+
+		Choice copy() {
+			Choice result = new Choice();
+			result.chunkSize = chunkSize;
+			result.entityBytes = entityBytes;
+			result.entityMillis = entityMillis;
+			result.batchMillis = batchMillis;
+			result.queries = queries;
+			return result;
+		}
+	}
+
+	/**
+	 * Time is counted only inside delegate's calls, as that's where it blocks on fetching.
+	 */
+	private class MeasuringIterator implements QueryResultIterator<Entity> {
+		private final String shape;
+		private final int chunkSize;
+		private final QueryResultIterator<Entity> delegate;
+
+		private int count;
+		private long nanos;
+		private long sampledBytes;
+		private int samples;
+		private boolean recorded;
+
+		MeasuringIterator(String shape, int chunkSize, QueryResultIterator<Entity> delegate) {
+			this.shape = shape;
+			this.chunkSize = chunkSize;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean hasNext() {
+			long start = System.nanoTime();
+			boolean result = delegate.hasNext();
+			nanos += System.nanoTime() - start;
+
+			if (!result && !recorded && count > 0) {
+				recorded = true;
+				int batches = (count + chunkSize - 1) / chunkSize;
+				record(shape, count, batches, sampledBytes, samples, nanos);
+			}
+			return result;
+		}
+
+		@Override
+		public Entity next() {
+			long start = System.nanoTime();
+			Entity result = delegate.next();
+			nanos += System.nanoTime() - start;
+
+			if (count++ % SAMPLE_EVERY == 0) {
+				sampledBytes += EntityTranslator.convertToPb(result).encodingSize();
+				samples++;
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			delegate.remove();
+		}
+
+		@Override
+		public List<Index> getIndexList() {
+			return delegate.getIndexList();
+		}
+
+		@Override
+		public Cursor getCursor() {
+			return delegate.getCursor();
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import me.lazerka.db.Row.Value.Type;
+
+import java.util.List;
+
+/**
+ * Hand-written parser of filters like <code>name = STRING(value)</code> and keys like <code>Kind(123)</code>.
+ *
+ * Filter grammar: field, space, operator, space, type, '(', value, ')'.
+ * Field may contain spaces, value may contain parentheses (e.g. key paths).
+ * Type is any {@link Type} name, case-insensitive.
+ * For IN operator, values are separated by '|', like <code>name IN STRING(a|b)</code>.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class FilterParser {
+	private static final ImmutableMap<String, FilterOperator> OPERATORS;
+	private static final ImmutableMap<String, Type> TYPES;
+	static {
+		ImmutableMap.Builder<String, FilterOperator> operators = ImmutableMap.builder();
+		for(FilterOperator operator : FilterOperator.values()) {
+			operators.put(operator.toString(), operator);
+		}
+		OPERATORS = operators.build();
+
+		ImmutableMap.Builder<String, Type> types = ImmutableMap.builder();
+		for(Type type : Type.values()) {
+			types.put(type.name(), type);
+		}
+		// Legacy name from the UI.
+		types.put("LONG", Type.INTEGER);
+		TYPES = types.build();
+	}
+
+	public static FilterPredicate parseFilter(String filter) {
+		int length = filter.length();
+		if (length == 0 || filter.charAt(length - 1) != ')') {
+			throw error(filter);
+		}
+
+		// Find " op " where op is a known operator, so field may contain spaces.
+		int fieldEnd = -1;
+		int operatorEnd = -1;
+		FilterOperator operator = null;
+		for(int i = filter.indexOf(' '); i > 0; i = filter.indexOf(' ', i + 1)) {
+			int end = filter.indexOf(' ', i + 1);
+			if (end == -1) {
+				break;
+			}
+			operator = OPERATORS.get(filter.substring(i + 1, end));
+			if (operator != null) {
+				fieldEnd = i;
+				operatorEnd = end;
+				break;
+			}
+		}
+		if (operator == null) {
+			throw error(filter);
+		}
+
+		int open = filter.indexOf('(', operatorEnd + 1);
+		if (open == -1) {
+			throw error(filter);
+		}
+
+		String field = filter.substring(0, fieldEnd);
+		String typeName = filter.substring(operatorEnd + 1, open).toUpperCase();
+		String valueStr = filter.substring(open + 1, length - 1);
+
+		Type type = TYPES.get(typeName);
+		if (type == null) {
+			throw new IllegalArgumentException("Unknown type `" + typeName + "` in filter `" + filter + "`.");
+		}
+		if (field.equals(Entity.KEY_RESERVED_PROPERTY)) {
+			type = Type.KEY;
+		}
+
+		if (operator == FilterOperator.IN) {
+			List<Object> values = Lists.newArrayList();
+			for(String str : Splitter.on('|').split(valueStr)) {
+				values.add(type.fromString(str));
+			}
+			return new FilterPredicate(field, operator, values);
+		}
+
+		Object value = type.fromString(valueStr);
+		return new FilterPredicate(field, operator, value);
+	}
+
+	/**
+	 * Parses key path as {@link Key#toString()} prints it, like <code>Parent(123)/Kind("name")</code>,
+	 * or a web-safe string of {@link KeyFactory#keyToString}.
+	 *
+	 * Path may start with namespace, like <code>!ns:Kind(123)</code>. Otherwise key is in the current namespace
+	 * of {@link NamespaceManager}.
+	 *
+	 * Single pass, allocating only kinds and names. As names are not escaped, one ends at <code>")</code>
+	 * that is followed by '/' or the end.
+	 */
+	public static Key parseKey(String str) {
+		str = str.trim();
+		if (str.indexOf('(') == -1) {
+			try {
+				return KeyFactory.stringToKey(str);
+			} catch (IllegalArgumentException e) {
+				throw keyError(str, e);
+			}
+		}
+
+		int start = 0;
+		String namespace = null;
+		if (str.charAt(0) == '!') {
+			start = str.indexOf(':');
+			if (start == -1) {
+				throw keyError(str, null);
+			}
+			namespace = str.substring(1, start);
+			try {
+				NamespaceManager.validateNamespace(namespace);
+			} catch (IllegalArgumentException e) {
+				throw keyError(str, e);
+			}
+			start++;
+		}
+		if (namespace == null) {
+			return parsePath(str, start);
+		}
+
+		// Root keys take namespace from NamespaceManager, children from their parent.
+		String previous = NamespaceManager.get();
+		NamespaceManager.set(namespace);
+		try {
+			return parsePath(str, start);
+		} finally {
+			NamespaceManager.set(previous);
+		}
+	}
+
+	/**
+	 * @param start Where the first kind starts.
+	 */
+	private static Key parsePath(String str, int start) {
+		int length = str.length();
+		Key key = null;
+		while (true) {
+			int open = str.indexOf('(', start);
+			if (open <= start || open + 2 >= length) {
+				throw keyError(str, null);
+			}
+			String kind = str.substring(start, open);
+
+			// Index of closing parenthesis.
+			int end;
+			if (str.charAt(open + 1) == '"') {
+				end = open + 1;
+				do {
+					end = str.indexOf("\")", end + 1);
+					if (end == -1) {
+						throw keyError(str, null);
+					}
+					end++;
+				} while (end + 1 < length && str.charAt(end + 1) != '/');
+
+				String name = str.substring(open + 2, end - 1);
+				try {
+					key = key == null ? KeyFactory.createKey(kind, name) : KeyFactory.createKey(key, kind, name);
+				} catch (IllegalArgumentException e) {
+					// Empty name.
+					throw keyError(str, e);
+				}
+			} else {
+				long id = 0;
+				for(end = open + 1; end < length; end++) {
+					int digit = str.charAt(end) - '0';
+					if (digit < 0 || digit > 9) {
+						break;
+					}
+					if (id > (Long.MAX_VALUE - digit) / 10) {
+						throw keyError(str, null);
+					}
+					id = id * 10 + digit;
+				}
+				if (end == open + 1 || end == length || str.charAt(end) != ')') {
+					throw keyError(str, null);
+				}
+				try {
+					key = key == null ? KeyFactory.createKey(kind, id) : KeyFactory.createKey(key, kind, id);
+				} catch (IllegalArgumentException e) {
+					// Zero id.
+					throw keyError(str, e);
+				}
+			}
+
+			if (end + 1 == length) {
+				return key;
+			}
+			if (str.charAt(end + 1) != '/') {
+				throw keyError(str, null);
+			}
+			start = end + 2;
+		}
+	}
+
+	private static IllegalArgumentException keyError(String str, Throwable cause) {
+		return new IllegalArgumentException("Unable to parse key " + str +
+				", expected Kind(123) or Kind(\"name\"), their path like A(1)/B(\"c\"), optionally prefixed with " +
+				"!namespace:, or web-safe key", cause);
+	}
+
+	private static IllegalArgumentException error(String filter) {
+		return new IllegalArgumentException("Unable to parse filter `" + filter + "`.");
+	}
+}
@@ -0,0 +1,31 @@
+package me.lazerka.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Responds 400 with the message, as bad input (unparseable filter, key, parameter out of range) is reported by
+ * throwing IllegalArgumentException.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Provider
+@Singleton
+public class IllegalArgumentMapper implements ExceptionMapper<IllegalArgumentException> {
+	private static final Logger logger = LoggerFactory.getLogger(IllegalArgumentMapper.class);
+
+	@Override
+	public Response toResponse(IllegalArgumentException e) {
+		logger.info("Bad request: {}", e.getMessage());
+		return Response.status(Response.Status.BAD_REQUEST)
+				.entity(String.valueOf(e.getMessage()))
+				.type(MediaType.TEXT_PLAIN_TYPE)
+				.build();
+	}
+}
@@ -0,0 +1,133 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Range of keys [start, end) of a single kind. Null boundary means unbounded.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class KeyShard {
+	private static final Logger logger = LoggerFactory.getLogger(KeyShard.class);
+
+	/** How many __scatter__ samples to take per shard, more means more even shards. */
+	private static final int OVERSAMPLING = 32;
+
+	/** Shards are run on request threads, one per shard, so their number is capped. */
+	public static final int MAX_SHARDS = 32;
+
+	@Nullable
+	private final Key start;
+
+	@Nullable
+	private final Key end;
+
+	public KeyShard(@Nullable Key start, @Nullable Key end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	@Nullable
+	public Key getStart() {
+		return start;
+	}
+
+	@Nullable
+	public Key getEnd() {
+		return end;
+	}
+
+	/**
+	 * @param count Number of shards as requested by user.
+	 * @return The same, but at most {@link #MAX_SHARDS}.
+	 * @throws IllegalArgumentException If not positive.
+	 */
+	public static int limit(int count) {
+		checkArgument(count > 0, "Number of shards must be positive: %s", count);
+		return Math.min(count, MAX_SHARDS);
+	}
+
+	/**
+	 * Splits kind into up to `count` shards of roughly equal size, by sampling `__scatter__` property.
+	 * Returns fewer shards (at least one) if the kind is small. Count is {@link #limit}ed.
+	 */
+	public static List<KeyShard> split(DatastoreService datastore, String kind, int count) {
+		count = limit(count);
+		if (count == 1) {
+			return ImmutableList.of(new KeyShard(null, null));
+		}
+
+		Query q = new Query(kind)
+				.addSort(Entity.SCATTER_RESERVED_PROPERTY)
+				.setKeysOnly();
+		List<Key> samples = Lists.newArrayListWithCapacity(count * OVERSAMPLING);
+		for(Entity entity : datastore.prepare(q).asIterable(withLimit(count * OVERSAMPLING))) {
+			samples.add(entity.getKey());
+		}
+		Collections.sort(samples);
+
+		List<KeyShard> result = Lists.newArrayListWithCapacity(count);
+		Key previous = null;
+		for(int i = 1; i < count; i++) {
+			int index = i * samples.size() / count;
+			if (index >= samples.size()) {
+				break;
+			}
+			Key split = samples.get(index);
+			if (previous != null && previous.equals(split)) {
+				continue;
+			}
+			result.add(new KeyShard(previous, split));
+			previous = split;
+		}
+		result.add(new KeyShard(previous, null));
+
+		logger.debug("Split {} into {} shards using {} samples", kind, result.size(), samples.size());
+		return result;
+	}
+
+	/**
+	 * Restricts query to this range. Query must not have inequality filters on other properties.
+	 */
+	public Query apply(Query q) {
+		List<Filter> filters = Lists.newArrayListWithCapacity(3);
+		if (q.getFilter() != null) {
+			filters.add(q.getFilter());
+		}
+		if (start != null) {
+			filters.add(new FilterPredicate(
+					Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, start));
+		}
+		if (end != null) {
+			filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, end));
+		}
+
+		if (filters.size() == 1) {
+			q.setFilter(filters.get(0));
+		} else if (filters.size() > 1) {
+			q.setFilter(new CompositeFilter(CompositeFilterOperator.AND, filters));
+		}
+		return q;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + ", " + end + ")";
+	}
+}
@@ -0,0 +1,345 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Results of branches of a disjunction as one, without duplicates, up to limit.
+ *
+ * Sources are expected to be already running, e.g. from AsyncDatastoreService, so that waiting for the first of them
+ * takes about as long as waiting for all of them.
+ *
+ * Results are merged in the order datastore returns each of them in: by inequality property, then by sort orders,
+ * then by key. If that's just key, only rows of the current key are remembered for deduplication, otherwise all
+ * returned rows are. A multi-valued property sorts by its least value that matches the query's inequalities, or by
+ * its greatest if descending, same as datastore does.
+ *
+ * Sources are taken in turns only if they have no common order, that is if branches have inequalities on different
+ * properties, or if rows don't have the properties to order by, as keys-only queries don't.
+ *
+ * There's no cursor, as one can't describe positions in several queries.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class MergingIterator implements QueryResultIterator<Entity> {
+	private final List<QueryResultIterator<Entity>> sources;
+	private final boolean projected;
+	private final int limit;
+
+	/** Sort orders of each source, except the final one by key. Null if not merging. */
+	@Nullable
+	private final List<List<SortPredicate>> orders;
+	/** Inequality filters of each source, as they choose which value of a multi-valued property it's sorted by. */
+	private final List<List<FilterPredicate>> inequalities;
+	private final boolean byKey;
+
+	/** Heads of sources, if merging. */
+	@Nullable
+	private final PriorityQueue<Head> heads;
+	/** Next source to take from, if not merging. */
+	private int turn;
+
+	/** Rows returned so far, or of the current key only if merging by key. */
+	private final Set<Object> seen = Sets.newHashSet();
+	@Nullable
+	private Key currentKey;
+
+	@Nullable
+	private Entity next;
+	private int count;
+
+	/**
+	 * @param queries The ones sources are results of, in the same order.
+	 */
+	public MergingIterator(List<Query> queries, List<QueryResultIterator<Entity>> sources, int limit) {
+		this.sources = sources;
+		this.projected = !queries.get(0).getProjections().isEmpty();
+		this.limit = limit;
+
+		inequalities = Lists.newArrayListWithCapacity(queries.size());
+		List<List<SortPredicate>> orders = Lists.newArrayListWithCapacity(queries.size());
+		for(Query query : queries) {
+			List<FilterPredicate> predicates = Lists.newArrayList();
+			addInequalities(query.getFilter(), predicates);
+			inequalities.add(predicates);
+			orders.add(order(query, predicates));
+		}
+		this.orders = mergeable(queries, orders) ? orders : null;
+		this.byKey = this.orders != null && this.orders.get(0).isEmpty();
+
+		if (this.orders != null) {
+			final int size = this.orders.get(0).size();
+			final List<SortPredicate> order = this.orders.get(0);
+			heads = new PriorityQueue<>(sources.size(), new Comparator<Head>() {
+				@Override
+				public int compare(Head a, Head b) {
+					for(int i = 0; i < size; i++) {
+						int result = Aggregator.compareValues(a.values[i], b.values[i]);
+						if (result != 0) {
+							return order.get(i).getDirection() == SortDirection.DESCENDING ? -result : result;
+						}
+					}
+					return a.entity.getKey().compareTo(b.entity.getKey());
+				}
+			});
+			for(int i = 0; i < sources.size(); i++) {
+				advance(i);
+			}
+		} else {
+			heads = null;
+		}
+	}
+
+	/**
+	 * Datastore sorts by inequality property first, even if sort orders don't mention it, then by the sort orders,
+	 * then by key.
+	 */
+	private static List<SortPredicate> order(Query query, List<FilterPredicate> inequalities) {
+		List<SortPredicate> result = Lists.newArrayList(query.getSortPredicates());
+		if (!inequalities.isEmpty()) {
+			String property = inequalities.get(0).getPropertyName();
+			if (result.isEmpty() || !result.get(0).getPropertyName().equals(property)) {
+				result.add(0, new SortPredicate(property, SortDirection.ASCENDING));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether all the sources are in the same order, and rows have the values to compare.
+	 */
+	private static boolean mergeable(List<Query> queries, List<List<SortPredicate>> orders) {
+		for(int i = 0; i < queries.size(); i++) {
+			if (!orders.get(i).equals(orders.get(0))) {
+				return false;
+			}
+			if (orders.get(i).isEmpty()) {
+				continue;
+			}
+			Query query = queries.get(i);
+			if (query.isKeysOnly()) {
+				return false;
+			}
+			for(SortPredicate sort : orders.get(i)) {
+				if (!query.getProjections().isEmpty() && !projects(query, sort.getPropertyName())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean projects(Query query, String property) {
+		if (property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+			return true;
+		}
+		for(Projection projection : query.getProjections()) {
+			if (projection.getName().equals(property)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Inequalities make datastore sort by that property first. Inequalities on key keep the key order.
+	 */
+	static boolean hasInequality(@Nullable Filter filter) {
+		List<FilterPredicate> result = Lists.newArrayList();
+		addInequalities(filter, result);
+		return !result.isEmpty();
+	}
+
+	/**
+	 * Branches are conjunctions, and datastore allows inequalities on one property only.
+	 */
+	private static void addInequalities(@Nullable Filter filter, List<FilterPredicate> result) {
+		if (filter instanceof CompositeFilter) {
+			for(Filter subFilter : ((CompositeFilter) filter).getSubFilters()) {
+				addInequalities(subFilter, result);
+			}
+		} else if (filter instanceof FilterPredicate) {
+			FilterPredicate predicate = (FilterPredicate) filter;
+			if (predicate.getOperator() != FilterOperator.EQUAL
+					&& predicate.getOperator() != FilterOperator.IN
+					&& !predicate.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+				result.add(predicate);
+			}
+		}
+	}
+
+	private void advance(int source) {
+		QueryResultIterator<Entity> iterator = sources.get(source);
+		if (iterator.hasNext()) {
+			Entity entity = iterator.next();
+			List<SortPredicate> order = orders.get(source);
+			Object[] values = new Object[order.size()];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = sortValue(entity, order.get(i), inequalities.get(source));
+			}
+			heads.add(new Head(entity, values, source));
+		}
+	}
+
+	@Nullable
+	private static Object sortValue(Entity entity, SortPredicate sort, List<FilterPredicate> inequalities) {
+		String property = sort.getPropertyName();
+		if (property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+			return entity.getKey();
+		}
+		Object value = entity.getProperty(property);
+		if (!(value instanceof Collection)) {
+			return value;
+		}
+
+		int direction = sort.getDirection() == SortDirection.DESCENDING ? -1 : 1;
+		Object result = null;
+		boolean found = false;
+		for(Object item : (Collection<?>) value) {
+			if (matches(item, property, inequalities)
+					&& (!found || Aggregator.compareValues(item, result) * direction < 0)) {
+				result = item;
+				found = true;
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(@Nullable Object value, String property, List<FilterPredicate> inequalities) {
+		for(FilterPredicate predicate : inequalities) {
+			if (!predicate.getPropertyName().equals(property)) {
+				continue;
+			}
+			int cmp = Aggregator.compareValues(value, predicate.getValue());
+			boolean match;
+			switch (predicate.getOperator()) {
+				case LESS_THAN:
+					match = cmp < 0;
+					break;
+				case LESS_THAN_OR_EQUAL:
+					match = cmp <= 0;
+					break;
+				case GREATER_THAN:
+					match = cmp > 0;
+					break;
+				case GREATER_THAN_OR_EQUAL:
+					match = cmp >= 0;
+					break;
+				case NOT_EQUAL:
+					match = cmp != 0;
+					break;
+				default:
+					match = true;
+			}
+			if (!match) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && count < limit) {
+			Entity entity = heads == null ? takeTurn() : takeHead();
+			if (entity == null) {
+				return false;
+			}
+
+			if (byKey && !entity.getKey().equals(currentKey)) {
+				currentKey = entity.getKey();
+				seen.clear();
+			}
+			// Projection returns a row per value of multi-valued property, so key is not enough.
+			Object row = projected ? Arrays.asList(entity.getKey(), entity.getProperties()) : entity.getKey();
+			if (seen.add(row)) {
+				next = entity;
+			}
+		}
+		return next != null;
+	}
+
+	@Nullable
+	private Entity takeHead() {
+		Head head = heads.poll();
+		if (head == null) {
+			return null;
+		}
+		advance(head.source);
+		return head.entity;
+	}
+
+	@Nullable
+	private Entity takeTurn() {
+		for(int i = 0; i < sources.size(); i++) {
+			QueryResultIterator<Entity> source = sources.get(turn);
+			turn = (turn + 1) % sources.size();
+			if (source.hasNext()) {
+				return source.next();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entity result = next;
+		next = null;
+		count++;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<Index> getIndexList() {
+		return null;
+	}
+
+	@Override
+	@Nullable
+	public Cursor getCursor() {
+		return null;
+	}
+
+	private static class Head {
+		final Entity entity;
+		/** Of the sort orders. */
+		final Object[] values;
+		final int source;
+
+		Head(Entity entity, Object[] values, int source) {
+			this.entity = entity;
+			this.values = values;
+			this.source = source;
+		}
+	}
+}
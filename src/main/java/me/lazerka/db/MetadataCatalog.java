@@ -0,0 +1,253 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entities;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.users.User;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory copy of `__kind__` and `__property__` metadata, so that page loads don't query datastore.
+ *
+ * Refreshed every `refreshSeconds` by a background thread if instance is allowed to have one (manual or basic
+ * scaling). Otherwise, first request after that period refreshes it, while concurrent requests get the old copy.
+ *
+ * Note that `__property__` only lists indexed properties.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class MetadataCatalog {
+	private static final Logger logger = LoggerFactory.getLogger(MetadataCatalog.class);
+
+	/**
+	 * Java class to get values of a `property_representation` as.
+	 * There's no INT64, as that's the representation of Long, Date and Rating alike, and metadata can't tell which.
+	 * Neither is there STRING, as that's of String, but also of Email, Link, Category, PhoneNumber, PostalAddress,
+	 * IMHandle, BlobKey and ShortBlob, which would come back as String, and bytes of ShortBlob decoded as text.
+	 */
+	private static final ImmutableMap<String, Class<?>> REPRESENTATION_CLASSES = ImmutableMap.<String, Class<?>>builder()
+			.put("DOUBLE", Double.class)
+			.put("BOOLEAN", Boolean.class)
+			.put("POINT", GeoPt.class)
+			.put("USER", User.class)
+			.put("REFERENCE", Key.class)
+			.build();
+
+	private final DatastoreService datastore;
+	private final long refreshMs;
+
+	private volatile Snapshot snapshot;
+	private volatile boolean stale;
+	private volatile boolean scheduled;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	@Inject
+	public MetadataCatalog(DatastoreService datastore, @Named("catalog.refreshSeconds") int refreshSeconds) {
+		this.datastore = datastore;
+		this.refreshMs = TimeUnit.SECONDS.toMillis(refreshSeconds);
+	}
+
+	public List<String> kinds() {
+		return snapshot().properties.keySet().asList();
+	}
+
+	/**
+	 * @return Property name -> its representations (e.g. INT64, STRING), empty if kind is unknown.
+	 */
+	public Map<String, List<String>> properties(String kind) {
+		Map<String, List<String>> result = snapshot().properties.get(kind);
+		return result == null ? ImmutableMap.<String, List<String>>of() : result;
+	}
+
+	/**
+	 * @return Class that values with given representations can be read as, or null if there's no single one.
+	 */
+	@Nullable
+	public static Class<?> valueClass(List<String> representations) {
+		Class<?> result = null;
+		for(String representation : representations) {
+			if (representation.equals("NULL")) {
+				continue;
+			}
+			Class<?> aClass = REPRESENTATION_CLASSES.get(representation);
+			if (aClass == null || (result != null && result != aClass)) {
+				return null;
+			}
+			result = aClass;
+		}
+		return result;
+	}
+
+	/**
+	 * Makes the query fetch only given fields, if they're all known to be indexed, and their values can be read
+	 * as the same Java type they were put as, see {@link #valueClass}.
+	 *
+	 * @return Whether query was changed.
+	 */
+	public boolean project(Query q, Set<String> fields) {
+		if (q.getKind() == null) {
+			return false;
+		}
+		Map<String, List<String>> indexed = properties(q.getKind());
+		List<PropertyProjection> projections = new ArrayList<>(fields.size());
+		for(String field : fields) {
+			if (field.equals(Entity.KEY_RESERVED_PROPERTY)) {
+				continue;
+			}
+			List<String> representations = indexed.get(field);
+			if (representations == null) {
+				return false;
+			}
+			// Without the type values come as RawValue, which can't tell e.g. Long from Date.
+			Class<?> valueClass = valueClass(representations);
+			if (valueClass == null) {
+				return false;
+			}
+			projections.add(new PropertyProjection(field, valueClass));
+		}
+
+		if (projections.isEmpty()) {
+			q.setKeysOnly();
+		}
+		for(PropertyProjection projection : projections) {
+			q.addProjection(projection);
+		}
+		return true;
+	}
+
+	/**
+	 * Makes next call reload metadata, e.g. after some kind was deleted.
+	 */
+	public void markStale() {
+		stale = true;
+	}
+
+	/**
+	 * Loads metadata right now.
+	 */
+	public void refresh() {
+		stale = false;
+		snapshot = load();
+	}
+
+	private Snapshot snapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				if (snapshot == null) {
+					refresh();
+					scheduleRefresh();
+				}
+				return snapshot;
+			}
+		}
+
+		boolean expired = !scheduled && System.currentTimeMillis() - current.loadedAtMs > refreshMs;
+		if ((stale || expired) && refreshing.compareAndSet(false, true)) {
+			try {
+				refresh();
+			} finally {
+				refreshing.set(false);
+			}
+		}
+		return snapshot;
+	}
+
+	private void scheduleRefresh() {
+		try {
+			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(backgroundThreadFactory());
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} catch (RuntimeException e) {
+						logger.warn("Unable to refresh metadata", e);
+					}
+				}
+			}, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+			scheduled = true;
+			logger.info("Refreshing metadata in background every {}ms", refreshMs);
+		} catch (RuntimeException e) {
+			logger.info("No background threads, will refresh metadata on requests: {}", e.toString());
+		}
+	}
+
+	ThreadFactory backgroundThreadFactory() {
+		return ThreadManager.backgroundThreadFactory();
+	}
+
+	private Snapshot load() {
+		long startMs = System.currentTimeMillis();
+
+		SortedMap<String, Map<String, List<String>>> builders = Maps.newTreeMap();
+		Query kinds = new Query(Entities.KIND_METADATA_KIND).setKeysOnly();
+		for(Entity entity : datastore.prepare(kinds).asIterable()) {
+			builders.put(entity.getKey().getName(), Maps.<String, List<String>>newTreeMap());
+		}
+
+		Query properties = new Query(Entities.PROPERTY_METADATA_KIND);
+		int propertyCount = 0;
+		for(Entity entity : datastore.prepare(properties).asIterable()) {
+			String kind = entity.getKey().getParent().getName();
+			Map<String, List<String>> kindProperties = builders.get(kind);
+			if (kindProperties == null) {
+				kindProperties = Maps.newTreeMap();
+				builders.put(kind, kindProperties);
+			}
+
+			@SuppressWarnings("unchecked")
+			Collection<String> representations = (Collection<String>) entity.getProperty("property_representation");
+			kindProperties.put(entity.getKey().getName(), representations == null
+					? ImmutableList.<String>of()
+					: ImmutableList.copyOf(representations));
+			propertyCount++;
+		}
+
+		ImmutableSortedMap.Builder<String, Map<String, List<String>>> result = ImmutableSortedMap.naturalOrder();
+		for(Map.Entry<String, Map<String, List<String>>> entry : builders.entrySet()) {
+			result.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+		}
+
+		logger.info("Loaded {} kinds, {} properties in {}ms",
+				builders.size(), propertyCount, System.currentTimeMillis() - startMs);
+		return new Snapshot(result.build(), startMs);
+	}
+
+	private static class Snapshot {
+		final ImmutableSortedMap<String, Map<String, List<String>>> properties;
+		final long loadedAtMs;
+
+		Snapshot(ImmutableSortedMap<String, Map<String, List<String>>> properties, long loadedAtMs) {
+			this.properties = properties;
+			this.loadedAtMs = loadedAtMs;
+		}
+	}
+}
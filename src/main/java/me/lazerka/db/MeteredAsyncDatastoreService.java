@@ -0,0 +1,193 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Iterables;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static me.lazerka.db.MeteredDatastoreService.*;
+
+/**
+ * Same as {@link MeteredDatastoreService}, into the same series, but for async calls, like those of
+ * {@link BulkPutter}, {@link BulkDeleter}, and branches of OR/IN queries.
+ *
+ * A call is counted when it's made, whether or not it succeeds.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class MeteredAsyncDatastoreService implements AsyncDatastoreService {
+	private final AsyncDatastoreService delegate;
+
+	private final Metrics.Counter gets;
+	private final Metrics.Counter puts;
+	private final Metrics.Counter deletes;
+	private final Metrics.Counter queries;
+	private final Metrics.Counter others;
+	private final Metrics.Histogram getBatches;
+	private final Metrics.Histogram putBatches;
+	private final Metrics.Histogram deleteBatches;
+	private final Metrics.Counter scanned;
+
+	public MeteredAsyncDatastoreService(AsyncDatastoreService delegate, Metrics metrics) {
+		this.delegate = delegate;
+
+		gets = metrics.counter(CALLS, CALLS_HELP, "method", "get");
+		puts = metrics.counter(CALLS, CALLS_HELP, "method", "put");
+		deletes = metrics.counter(CALLS, CALLS_HELP, "method", "delete");
+		queries = metrics.counter(CALLS, CALLS_HELP, "method", "query");
+		others = metrics.counter(CALLS, CALLS_HELP, "method", "other");
+
+		getBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "get");
+		putBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "put");
+		deleteBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "delete");
+
+		scanned = metrics.counter(SCANNED, SCANNED_HELP);
+	}
+
+	@Override
+	public Future<Entity> get(Key key) {
+		gets.increment();
+		getBatches.record(1);
+		return delegate.get(key);
+	}
+
+	@Override
+	public Future<Entity> get(Transaction txn, Key key) {
+		gets.increment();
+		getBatches.record(1);
+		return delegate.get(txn, key);
+	}
+
+	@Override
+	public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+		gets.increment();
+		getBatches.record(Iterables.size(keys));
+		return delegate.get(keys);
+	}
+
+	@Override
+	public Future<Map<Key, Entity>> get(Transaction txn, Iterable<Key> keys) {
+		gets.increment();
+		getBatches.record(Iterables.size(keys));
+		return delegate.get(txn, keys);
+	}
+
+	@Override
+	public Future<Key> put(Entity entity) {
+		puts.increment();
+		putBatches.record(1);
+		return delegate.put(entity);
+	}
+
+	@Override
+	public Future<Key> put(Transaction txn, Entity entity) {
+		puts.increment();
+		putBatches.record(1);
+		return delegate.put(txn, entity);
+	}
+
+	@Override
+	public Future<List<Key>> put(Iterable<Entity> entities) {
+		puts.increment();
+		putBatches.record(Iterables.size(entities));
+		return delegate.put(entities);
+	}
+
+	@Override
+	public Future<List<Key>> put(Transaction txn, Iterable<Entity> entities) {
+		puts.increment();
+		putBatches.record(Iterables.size(entities));
+		return delegate.put(txn, entities);
+	}
+
+	@Override
+	public Future<Void> delete(Key... keys) {
+		deletes.increment();
+		deleteBatches.record(keys.length);
+		return delegate.delete(keys);
+	}
+
+	@Override
+	public Future<Void> delete(Transaction txn, Key... keys) {
+		deletes.increment();
+		deleteBatches.record(keys.length);
+		return delegate.delete(txn, keys);
+	}
+
+	@Override
+	public Future<Void> delete(Iterable<Key> keys) {
+		deletes.increment();
+		deleteBatches.record(Iterables.size(keys));
+		return delegate.delete(keys);
+	}
+
+	@Override
+	public Future<Void> delete(Transaction txn, Iterable<Key> keys) {
+		deletes.increment();
+		deleteBatches.record(Iterables.size(keys));
+		return delegate.delete(txn, keys);
+	}
+
+	@Override
+	public PreparedQuery prepare(Query query) {
+		return new MeteredQuery(delegate.prepare(query), queries, scanned);
+	}
+
+	@Override
+	public PreparedQuery prepare(Transaction txn, Query query) {
+		return new MeteredQuery(delegate.prepare(txn, query), queries, scanned);
+	}
+
+	@Override
+	public Future<Transaction> beginTransaction() {
+		others.increment();
+		return delegate.beginTransaction();
+	}
+
+	@Override
+	public Future<Transaction> beginTransaction(TransactionOptions options) {
+		others.increment();
+		return delegate.beginTransaction(options);
+	}
+
+	@Override
+	public Future<KeyRange> allocateIds(String kind, long num) {
+		others.increment();
+		return delegate.allocateIds(kind, num);
+	}
+
+	@Override
+	public Future<KeyRange> allocateIds(Key parent, String kind, long num) {
+		others.increment();
+		return delegate.allocateIds(parent, kind, num);
+	}
+
+	@Override
+	public Future<DatastoreAttributes> getDatastoreAttributes() {
+		return delegate.getDatastoreAttributes();
+	}
+
+	@Override
+	public Future<Map<Index, Index.IndexState>> getIndexes() {
+		others.increment();
+		return delegate.getIndexes();
+	}
+
+	@Override
+	public Transaction getCurrentTransaction() {
+		return delegate.getCurrentTransaction();
+	}
+
+	@Override
+	public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+		return delegate.getCurrentTransaction(returnedIfNoTxn);
+	}
+
+	@Override
+	public Collection<Transaction> getActiveTransactions() {
+		return delegate.getActiveTransactions();
+	}
+}
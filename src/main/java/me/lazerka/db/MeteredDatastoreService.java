@@ -0,0 +1,362 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Iterables;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts calls, batch sizes and entities read from queries, see {@link Metrics}.
+ *
+ * Query results are counted by the iterators, which add their count to the shared counter only once in a while,
+ * so that reading an entity costs no atomic operation. Lists from asList() are not counted.
+ *
+ * Calls through {@link MeteredAsyncDatastoreService} go to the same series.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class MeteredDatastoreService implements DatastoreService {
+	/** How often an iterator adds to the shared counter. */
+	private static final int FLUSH_EVERY = 256;
+
+	static final String CALLS = "db_datastore_calls_total";
+	static final String CALLS_HELP = "Calls of DatastoreService and AsyncDatastoreService methods.";
+	static final String BATCHES = "db_datastore_batch_size";
+	static final String BATCHES_HELP = "Number of keys or entities per call.";
+	static final String SCANNED = "db_datastore_entities_scanned_total";
+	static final String SCANNED_HELP = "Entities read from query iterators.";
+
+	private final DatastoreService delegate;
+
+	private final Metrics.Counter gets;
+	private final Metrics.Counter puts;
+	private final Metrics.Counter deletes;
+	private final Metrics.Counter queries;
+	private final Metrics.Counter others;
+	private final Metrics.Histogram getBatches;
+	private final Metrics.Histogram putBatches;
+	private final Metrics.Histogram deleteBatches;
+	private final Metrics.Counter scanned;
+
+	public MeteredDatastoreService(DatastoreService delegate, Metrics metrics) {
+		this.delegate = delegate;
+
+		gets = metrics.counter(CALLS, CALLS_HELP, "method", "get");
+		puts = metrics.counter(CALLS, CALLS_HELP, "method", "put");
+		deletes = metrics.counter(CALLS, CALLS_HELP, "method", "delete");
+		queries = metrics.counter(CALLS, CALLS_HELP, "method", "query");
+		others = metrics.counter(CALLS, CALLS_HELP, "method", "other");
+
+		getBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "get");
+		putBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "put");
+		deleteBatches = metrics.histogram(BATCHES, BATCHES_HELP, "method", "delete");
+
+		scanned = metrics.counter(SCANNED, SCANNED_HELP);
+	}
+
+	@Override
+	public Entity get(Key key) throws EntityNotFoundException {
+		gets.increment();
+		getBatches.record(1);
+		return delegate.get(key);
+	}
+
+	@Override
+	public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+		gets.increment();
+		getBatches.record(1);
+		return delegate.get(txn, key);
+	}
+
+	@Override
+	public Map<Key, Entity> get(Iterable<Key> keys) {
+		gets.increment();
+		getBatches.record(Iterables.size(keys));
+		return delegate.get(keys);
+	}
+
+	@Override
+	public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+		gets.increment();
+		getBatches.record(Iterables.size(keys));
+		return delegate.get(txn, keys);
+	}
+
+	@Override
+	public Key put(Entity entity) {
+		puts.increment();
+		putBatches.record(1);
+		return delegate.put(entity);
+	}
+
+	@Override
+	public Key put(Transaction txn, Entity entity) {
+		puts.increment();
+		putBatches.record(1);
+		return delegate.put(txn, entity);
+	}
+
+	@Override
+	public List<Key> put(Iterable<Entity> entities) {
+		puts.increment();
+		putBatches.record(Iterables.size(entities));
+		return delegate.put(entities);
+	}
+
+	@Override
+	public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+		puts.increment();
+		putBatches.record(Iterables.size(entities));
+		return delegate.put(txn, entities);
+	}
+
+	@Override
+	public void delete(Key... keys) {
+		deletes.increment();
+		deleteBatches.record(keys.length);
+		delegate.delete(keys);
+	}
+
+	@Override
+	public void delete(Transaction txn, Key... keys) {
+		deletes.increment();
+		deleteBatches.record(keys.length);
+		delegate.delete(txn, keys);
+	}
+
+	@Override
+	public void delete(Iterable<Key> keys) {
+		deletes.increment();
+		deleteBatches.record(Iterables.size(keys));
+		delegate.delete(keys);
+	}
+
+	@Override
+	public void delete(Transaction txn, Iterable<Key> keys) {
+		deletes.increment();
+		deleteBatches.record(Iterables.size(keys));
+		delegate.delete(txn, keys);
+	}
+
+	@Override
+	public PreparedQuery prepare(Query query) {
+		return new MeteredQuery(delegate.prepare(query), queries, scanned);
+	}
+
+	@Override
+	public PreparedQuery prepare(Transaction txn, Query query) {
+		return new MeteredQuery(delegate.prepare(txn, query), queries, scanned);
+	}
+
+	@Override
+	public Transaction beginTransaction() {
+		others.increment();
+		return delegate.beginTransaction();
+	}
+
+	@Override
+	public Transaction beginTransaction(TransactionOptions options) {
+		others.increment();
+		return delegate.beginTransaction(options);
+	}
+
+	@Override
+	public KeyRange allocateIds(String kind, long num) {
+		others.increment();
+		return delegate.allocateIds(kind, num);
+	}
+
+	@Override
+	public KeyRange allocateIds(Key parent, String kind, long num) {
+		others.increment();
+		return delegate.allocateIds(parent, kind, num);
+	}
+
+	@Override
+	public KeyRangeState allocateIdRange(KeyRange range) {
+		others.increment();
+		return delegate.allocateIdRange(range);
+	}
+
+	@Override
+	public DatastoreAttributes getDatastoreAttributes() {
+		return delegate.getDatastoreAttributes();
+	}
+
+	@Override
+	public Map<Index, Index.IndexState> getIndexes() {
+		others.increment();
+		return delegate.getIndexes();
+	}
+
+	@Override
+	public Transaction getCurrentTransaction() {
+		return delegate.getCurrentTransaction();
+	}
+
+	@Override
+	public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+		return delegate.getCurrentTransaction(returnedIfNoTxn);
+	}
+
+	@Override
+	public Collection<Transaction> getActiveTransactions() {
+		return delegate.getActiveTransactions();
+	}
+
+	/**
+	 * Counts a query when its results are requested, as that's when it's run.
+	 */
+	static class MeteredQuery implements PreparedQuery {
+		private final PreparedQuery delegate;
+		private final Metrics.Counter queries;
+		private final Metrics.Counter scanned;
+
+		MeteredQuery(PreparedQuery delegate, Metrics.Counter queries, Metrics.Counter scanned) {
+			this.delegate = delegate;
+			this.queries = queries;
+			this.scanned = scanned;
+		}
+
+		@Override
+		public List<Entity> asList(FetchOptions fetchOptions) {
+			queries.increment();
+			return delegate.asList(fetchOptions);
+		}
+
+		@Override
+		public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+			queries.increment();
+			return delegate.asQueryResultList(fetchOptions);
+		}
+
+		@Override
+		public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+			return asQueryResultIterable(fetchOptions);
+		}
+
+		@Override
+		public QueryResultIterable<Entity> asQueryResultIterable(final FetchOptions fetchOptions) {
+			return new QueryResultIterable<Entity>() {
+				@Override
+				public QueryResultIterator<Entity> iterator() {
+					return asQueryResultIterator(fetchOptions);
+				}
+			};
+		}
+
+		@Override
+		public Iterable<Entity> asIterable() {
+			return asQueryResultIterable();
+		}
+
+		@Override
+		public QueryResultIterable<Entity> asQueryResultIterable() {
+			return new QueryResultIterable<Entity>() {
+				@Override
+				public QueryResultIterator<Entity> iterator() {
+					return asQueryResultIterator();
+				}
+			};
+		}
+
+		@Override
+		public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+			return asQueryResultIterator(fetchOptions);
+		}
+
+		@Override
+		public Iterator<Entity> asIterator() {
+			return asQueryResultIterator();
+		}
+
+		@Override
+		public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+			queries.increment();
+			return new MeteredIterator(delegate.asQueryResultIterator(fetchOptions), scanned);
+		}
+
+		@Override
+		public QueryResultIterator<Entity> asQueryResultIterator() {
+			queries.increment();
+			return new MeteredIterator(delegate.asQueryResultIterator(), scanned);
+		}
+
+		@Override
+		public Entity asSingleEntity() throws TooManyResultsException {
+			queries.increment();
+			Entity result = delegate.asSingleEntity();
+			if (result != null) {
+				scanned.increment();
+			}
+			return result;
+		}
+
+		@Override
+		public int countEntities(FetchOptions fetchOptions) {
+			queries.increment();
+			return delegate.countEntities(fetchOptions);
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public int countEntities() {
+			queries.increment();
+			return delegate.countEntities();
+		}
+	}
+
+	private static class MeteredIterator implements QueryResultIterator<Entity> {
+		private final QueryResultIterator<Entity> delegate;
+		private final Metrics.Counter scanned;
+		private int unflushed;
+
+		MeteredIterator(QueryResultIterator<Entity> delegate, Metrics.Counter scanned) {
+			this.delegate = delegate;
+			this.scanned = scanned;
+		}
+
+		@Override
+		public boolean hasNext() {
+			boolean result = delegate.hasNext();
+			if (!result) {
+				flush();
+			}
+			return result;
+		}
+
+		@Override
+		public Entity next() {
+			Entity result = delegate.next();
+			if (++unflushed == FLUSH_EVERY) {
+				flush();
+			}
+			return result;
+		}
+
+		private void flush() {
+			if (unflushed > 0) {
+				scanned.add(unflushed);
+				unflushed = 0;
+			}
+		}
+
+		@Override
+		public void remove() {
+			delegate.remove();
+		}
+
+		@Override
+		public List<Index> getIndexList() {
+			return delegate.getIndexList();
+		}
+
+		@Override
+		public Cursor getCursor() {
+			return delegate.getCursor();
+		}
+	}
+}
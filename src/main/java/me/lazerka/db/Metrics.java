@@ -0,0 +1,155 @@
+package me.lazerka.db;
+
+import com.google.common.collect.Maps;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of this instance, written in Prometheus text format.
+ *
+ * Recording is an atomic increment or two, so callers on hot paths should hold on to {@link Counter} and
+ * {@link Histogram} they got, rather than look them up per event.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class Metrics {
+	private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+	/**
+	 * @param labels Pairs of label name and value.
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, "counter").series(labels);
+	}
+
+	/**
+	 * @param labels Pairs of label name and value.
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) family(name, help, "histogram").series(labels);
+	}
+
+	private Family family(String name, String help, String type) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type);
+		}
+		return family;
+	}
+
+	public void write(Writer writer) throws IOException {
+		SortedMap<String, Family> sorted = Maps.newTreeMap();
+		sorted.putAll(families);
+		for(Family family : sorted.values()) {
+			writer.write("# HELP " + family.name + ' ' + family.help + '\n');
+			writer.write("# TYPE " + family.name + ' ' + family.type + '\n');
+			SortedMap<String, Object> series = Maps.newTreeMap();
+			series.putAll(family.series);
+			for(Map.Entry<String, Object> entry : series.entrySet()) {
+				if (entry.getValue() instanceof Counter) {
+					writer.write(family.name + entry.getKey() + ' ' + ((Counter) entry.getValue()).get() + '\n');
+				} else {
+					((Histogram) entry.getValue()).write(family.name, entry.getKey(), writer);
+				}
+			}
+		}
+	}
+
+	private static class Family {
+		final String name;
+		final String help;
+		final String type;
+		/** By labels string, like `{a="b",c="d"}`. */
+		final ConcurrentMap<String, Object> series = new ConcurrentHashMap<>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		Object series(String[] labels) {
+			if (labels.length % 2 != 0) {
+				throw new IllegalArgumentException("Labels must be name-value pairs");
+			}
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < labels.length; i += 2) {
+				sb.append(i == 0 ? '{' : ',').append(labels[i]).append("=\"")
+						.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			}
+			String key = labels.length == 0 ? "" : sb.append('}').toString();
+
+			Object result = series.get(key);
+			if (result == null) {
+				Object created = type.equals("counter") ? new Counter() : new Histogram();
+				result = series.putIfAbsent(key, created);
+				if (result == null) {
+					result = created;
+				}
+			}
+			return result;
+		}
+	}
+
+	public static class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * Buckets are powers of two: 1, 2, 4, ... 2^30, +Inf, so bucket of a value is found by a single instruction.
+	 */
+	public static class Histogram {
+		static final int BUCKETS = 32;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong sum = new AtomicLong();
+
+		public void record(long value) {
+			// Smallest i such that value <= 2^i.
+			int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			sum.addAndGet(value);
+		}
+
+		void write(String name, String labels, Writer writer) throws IOException {
+			// `le` goes along with other labels.
+			String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ',';
+			long cumulative = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				cumulative += buckets.get(i);
+				String le = i == BUCKETS - 1 ? "+Inf" : String.valueOf(1L << i);
+				writer.write(name + "_bucket" + prefix + "le=\"" + le + "\"} " + cumulative + '\n');
+			}
+			writer.write(name + "_sum" + labels + ' ' + sum.get() + '\n');
+			writer.write(name + "_count" + labels + ' ' + cumulative + '\n');
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package me.lazerka.db;
+
+import com.google.common.io.CountingOutputStream;
+import com.sun.jersey.api.core.ExtendedUriInfo;
+import com.sun.jersey.api.uri.UriTemplate;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records latency and response size per endpoint, see {@link Metrics}.
+ *
+ * Both are recorded when response is finished, so that they include streamed bodies. Size is before compression,
+ * as this filter goes after {@link CompressionFilter}.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+
+	private final Metrics metrics;
+	private final Provider<ExtendedUriInfo> uriInfo;
+
+	/** By endpoint, so that they're looked up in {@link Metrics} once. */
+	private final ConcurrentMap<String, Meters> meters = new ConcurrentHashMap<>();
+
+	@Inject
+	public MetricsFilter(Metrics metrics, Provider<ExtendedUriInfo> uriInfo) {
+		this.metrics = metrics;
+		this.uriInfo = uriInfo;
+	}
+
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		request.getProperties().put(START_PROPERTY, System.nanoTime());
+		return request;
+	}
+
+	@Override
+	public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+		Long startNanos = (Long) request.getProperties().get(START_PROPERTY);
+		if (startNanos != null) {
+			Meters meters = meters(request.getMethod() + ' ' + endpoint());
+			response.setContainerResponseWriter(new Writer(response.getContainerResponseWriter(), meters, startNanos));
+		}
+		return response;
+	}
+
+	private Meters meters(String endpoint) {
+		Meters result = meters.get(endpoint);
+		if (result == null) {
+			// Racing threads get the same series from Metrics anyway.
+			result = new Meters(
+					metrics.histogram(
+							"db_request_duration_ms", "Time to respond, including streaming.", "endpoint", endpoint),
+					metrics.histogram("db_response_bytes", "Response body size, uncompressed.", "endpoint", endpoint));
+			meters.put(endpoint, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Path template of matched resource method, like /db/kind/{kind}/properties.
+	 */
+	private String endpoint() {
+		List<UriTemplate> templates = uriInfo.get().getMatchedTemplates();
+		if (templates.isEmpty()) {
+			return "unmatched";
+		}
+		// Innermost first.
+		StringBuilder sb = new StringBuilder();
+		for(int i = templates.size() - 1; i >= 0; i--) {
+			String template = templates.get(i).getTemplate();
+			if (!template.startsWith("/")) {
+				sb.append('/');
+			}
+			sb.append(template);
+		}
+		return sb.toString();
+	}
+
+	private static class Meters {
+		final Metrics.Histogram duration;
+		final Metrics.Histogram bytes;
+
+		Meters(Metrics.Histogram duration, Metrics.Histogram bytes) {
+			this.duration = duration;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class Writer implements ContainerResponseWriter {
+		private final ContainerResponseWriter writer;
+		private final Meters meters;
+		private final long startNanos;
+		private CountingOutputStream out;
+
+		Writer(ContainerResponseWriter writer, Meters meters, long startNanos) {
+			this.writer = writer;
+			this.meters = meters;
+			this.startNanos = startNanos;
+		}
+
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+			out = new CountingOutputStream(writer.writeStatusAndHeaders(contentLength, response));
+			return out;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			writer.finish();
+
+			long millis = (System.nanoTime() - startNanos) / 1000000;
+			meters.duration.record(millis);
+			meters.bytes.record(out == null ? 0 : out.getCount());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks concurrently on request threads, which is the only kind of threads GAE allows to call APIs from.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class Parallel {
+	/**
+	 * Runs all the tasks using up to `threads` threads, and returns their results in the same order.
+	 * If any task fails, its exception is rethrown, unchecked.
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int threads) {
+		if (tasks.isEmpty()) {
+			return Lists.newArrayList();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), threadFactory());
+		try {
+			List<Future<T>> futures = executor.invokeAll(tasks);
+			List<T> result = Lists.newArrayListWithCapacity(futures.size());
+			for(Future<T> future : futures) {
+				result.add(future.get());
+			}
+			return result;
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * For tasks that need to communicate while running. Caller must shut it down.
+	 */
+	public ExecutorService executor(int threads) {
+		return Executors.newFixedThreadPool(threads, threadFactory());
+	}
+
+	ThreadFactory threadFactory() {
+		return ThreadManager.currentRequestThreadFactory();
+	}
+}
@@ -0,0 +1,162 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads query results on another thread into a bounded queue, so that the next batch is being fetched while caller
+ * converts and writes the previous one. Wall time becomes close to the slower of the two, rather than their sum.
+ * When caller falls behind, the queue fills up and reading pauses, so memory stays bounded.
+ *
+ * Cursor and index list are only known after all the results are taken. Must be closed, otherwise the reading
+ * thread may stay blocked on a full queue.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class PrefetchingIterator implements QueryResultIterator<Entity>, Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchingIterator.class);
+
+	private final QueryResultIterator<Entity> source;
+	private final ExecutorService executor;
+	/** Entities, then End or Failure. */
+	private final BlockingQueue<Object> queue;
+
+	@Nullable
+	private Entity next;
+	@Nullable
+	private End end;
+
+	/**
+	 * @param capacity How many entities may be read ahead of the caller.
+	 * @param executor Single thread to read on, shut down by {@link #close()}.
+	 */
+	public PrefetchingIterator(QueryResultIterator<Entity> source, int capacity, ExecutorService executor) {
+		this.source = source;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<>(capacity + 1);
+
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		});
+	}
+
+	private void read() {
+		try {
+			try {
+				while (source.hasNext()) {
+					queue.put(source.next());
+				}
+				queue.put(new End(source.getCursor(), source.getIndexList()));
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable e) {
+				// Errors too, e.g. of request deadline, otherwise caller would wait for the queue forever.
+				queue.put(new Failure(e));
+			}
+		} catch (InterruptedException e) {
+			logger.debug("Closed before finished reading");
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		if (end != null) {
+			return false;
+		}
+
+		Object item;
+		try {
+			item = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+
+		if (item instanceof Entity) {
+			next = (Entity) item;
+			return true;
+		} else if (item instanceof Failure) {
+			throw Throwables.propagate(((Failure) item).cause);
+		} else {
+			end = (End) item;
+			return false;
+		}
+	}
+
+	@Override
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entity result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<Index> getIndexList() {
+		return ended().indexList;
+	}
+
+	@Override
+	public Cursor getCursor() {
+		return ended().cursor;
+	}
+
+	private End ended() {
+		if (end == null) {
+			throw new IllegalStateException("Not all results are read yet");
+		}
+		return end;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class End {
+		@Nullable
+		final Cursor cursor;
+		@Nullable
+		final List<Index> indexList;
+
+		End(@Nullable Cursor cursor, @Nullable List<Index> indexList) {
+			this.cursor = cursor;
+			this.indexList = indexList;
+		}
+	}
+
+	private static class Failure {
+		/** Any, as an Error too must reach the caller. */
+		final Throwable cause;
+
+		Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timing breakdown of a single request with profile=true, to tell a slow query or missing index from slow
+ * conversion or a large response.
+ *
+ * Batches are timed right where they're fetched, below {@link PrefetchingIterator}, so their time is that of
+ * datastore even if request thread was busy meanwhile. Stages are timed on request thread. So stages and batches
+ * may add up to more than total, if they overlapped.
+ *
+ * Datastore API doesn't tell where its RPC batches end, so batches here are approximate: every `chunkSize`
+ * entities of a query, which is what datastore fetches at a time once past the first batch. Hence "approx" in
+ * their names in the output.
+ *
+ * Only first {@link #MAX_BATCHES} batches are listed, so that it fits in a header. Totals count all of them.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class Profile {
+	static final int MAX_BATCHES = 50;
+
+	private final long startNanos = System.nanoTime();
+
+	@JsonProperty
+	private final List<String> queries = Lists.newArrayList();
+
+	@JsonProperty
+	private String fetchOptions;
+
+	@JsonProperty
+	private final List<Batch> approxBatches = Lists.newArrayList();
+
+	@JsonProperty
+	private int approxBatchCount;
+
+	private long fetchNanos;
+
+	/** Entities fetched, which is more than returned if OR/IN queries return the same entity. */
+	@JsonProperty
+	private long scanned;
+
+	@JsonProperty
+	private long returned;
+
+	/** Stage -> nanoseconds. */
+	private final Map<String, Long> stages = Maps.newLinkedHashMap();
+
+	/** Of response body. */
+	@JsonProperty
+	private long bytes;
+
+	private long totalNanos;
+
+	private final List<ProfilingIterator> iterators = Lists.newArrayList();
+
+	/**
+	 * Replaces queries of a previous attempt, if any, e.g. when projection failed.
+	 */
+	public synchronized void queries(List<Query> queries, FetchOptions fetchOptions) {
+		iterators.clear();
+		this.queries.clear();
+		for(Query q : queries) {
+			this.queries.add(q.toString());
+		}
+		this.fetchOptions = fetchOptions.toString();
+	}
+
+	/**
+	 * Wraps iterator of a query to time its batches.
+	 *
+	 * @param query Index of the query in {@link #queries}.
+	 * @param chunkSize The one iterator was created with.
+	 */
+	public synchronized QueryResultIterator<Entity> wrap(
+			QueryResultIterator<Entity> iterator,
+			int query,
+			Integer chunkSize
+	) {
+		ProfilingIterator result =
+				new ProfilingIterator(iterator, query, chunkSize == null ? Integer.MAX_VALUE : chunkSize);
+		iterators.add(result);
+		return result;
+	}
+
+	/**
+	 * Adds time since `startNanos` to the stage.
+	 */
+	public synchronized void stage(String stage, long startNanos) {
+		add(stage, System.nanoTime() - startNanos);
+	}
+
+	public synchronized void add(String stage, long nanos) {
+		Long existing = stages.get(stage);
+		stages.put(stage, existing == null ? nanos : existing + nanos);
+	}
+
+	public synchronized void returned(long returned) {
+		this.returned = returned;
+	}
+
+	private synchronized void batch(int query, int entities, long nanos) {
+		approxBatchCount++;
+		scanned += entities;
+		fetchNanos += nanos;
+		if (approxBatches.size() < MAX_BATCHES) {
+			approxBatches.add(new Batch(query, entities, millis(nanos)));
+		}
+	}
+
+	/**
+	 * Stops the clock.
+	 *
+	 * @param bytes Of response body.
+	 * @return JSON with non-ASCII escaped, as it goes to a header.
+	 */
+	public synchronized String finish(long bytes, ObjectMapper mapper) throws IOException {
+		this.bytes = bytes;
+		// Those that weren't read to the end, e.g. of OR queries that reached limit.
+		for(ProfilingIterator iterator : iterators) {
+			iterator.finish();
+		}
+		totalNanos = System.nanoTime() - startNanos;
+
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = mapper.getFactory().createGenerator(writer);
+		generator.enable(JsonGenerator.Feature.ESCAPE_NON_ASCII);
+		mapper.writeValue(generator, this);
+		return writer.toString();
+	}
+
+	@JsonProperty
+	double fetchMs() {
+		return millis(fetchNanos);
+	}
+
+	/** Stage -> milliseconds. */
+	@JsonProperty
+	Map<String, Double> stagesMs() {
+		Map<String, Double> result = Maps.newLinkedHashMap();
+		for(Map.Entry<String, Long> entry : stages.entrySet()) {
+			result.put(entry.getKey(), millis(entry.getValue()));
+		}
+		return result;
+	}
+
+	@JsonProperty
+	double totalMs() {
+		return millis(totalNanos);
+	}
+
+	/** Rounded to microseconds. */
+	private static double millis(long nanos) {
+		return Math.round(nanos / 1e3) / 1e3;
+	}
+
+	public static class Batch {
+		/** Index of query. */
+		@JsonProperty
+		final int query;
+
+		@JsonProperty
+		final int entities;
+
+		@JsonProperty
+		final double ms;
+
+		Batch(int query, int entities, double ms) {
+			this.query = query;
+			this.entities = entities;
+			this.ms = ms;
+		}
+	}
+
+	/**
+	 * Counts every `chunkSize` entities as a batch, and time spent in hasNext() and next() as its fetch time.
+	 *
+	 * Iterators of OR/IN branches run on other threads, and {@link #finish(long, ObjectMapper)} may read them from
+	 * request thread, so their bookkeeping is guarded by Profile.this.
+	 */
+	private class ProfilingIterator implements QueryResultIterator<Entity> {
+		private final QueryResultIterator<Entity> delegate;
+		private final int query;
+		private final int chunkSize;
+
+		// Guarded by Profile.this.
+		private int count;
+		private long nanos;
+		private boolean finished;
+
+		ProfilingIterator(QueryResultIterator<Entity> delegate, int query, int chunkSize) {
+			this.delegate = delegate;
+			this.query = query;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			long start = System.nanoTime();
+			boolean result = delegate.hasNext();
+			long elapsed = System.nanoTime() - start;
+
+			synchronized (Profile.this) {
+				nanos += elapsed;
+				if (!result) {
+					finish();
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Records the last batch, even if empty, as it may still have taken a round trip to see it's the end.
+		 */
+		void finish() {
+			synchronized (Profile.this) {
+				if (!finished) {
+					finished = true;
+					batch(query, count, nanos);
+				}
+			}
+		}
+
+		@Override
+		public Entity next() {
+			long start = System.nanoTime();
+			Entity result = delegate.next();
+			long elapsed = System.nanoTime() - start;
+
+			synchronized (Profile.this) {
+				nanos += elapsed;
+				if (++count == chunkSize && !finished) {
+					batch(query, count, nanos);
+					count = 0;
+					nanos = 0;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			delegate.remove();
+		}
+
+		@Override
+		public List<Index> getIndexList() {
+			return delegate.getIndexList();
+		}
+
+		@Override
+		public Cursor getCursor() {
+			return delegate.getCursor();
+		}
+	}
+}
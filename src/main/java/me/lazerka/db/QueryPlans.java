@@ -0,0 +1,207 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * LRU cache of parsed queries, so that repeated requests don't parse filters and keys again.
+ *
+ * Datastore {@link Query} is mutable, so what's cached is its immutable parts, and each call builds a new Query.
+ * Load time in {@link #stats()} is the parsing time.
+ *
+ * Disjunctions (IN filters and `or` alternatives) are expanded into a query per branch, to be run concurrently
+ * and merged by {@link MergingIterator}, rather than one after another by datastore client.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class QueryPlans {
+	private static final int MAX_SIZE = 1000;
+
+	/** Same as datastore's own limit on sub-queries. */
+	static final int MAX_BRANCHES = 30;
+
+	private final LoadingCache<PlanKey, Plan> cache = CacheBuilder.newBuilder()
+			.maximumSize(MAX_SIZE)
+			.recordStats()
+			.build(new CacheLoader<PlanKey, Plan>() {
+				@Override
+				public Plan load(PlanKey key) {
+					return parse(key);
+				}
+			});
+
+	/**
+	 * @param filters ANDed together.
+	 * @param or Alternatives, one of which must hold in addition to `filters`. Empty means none.
+	 * @return One query, or a query per branch of disjunction.
+	 */
+	public List<Query> createQueries(String kind, String ancestor, List<String> filters, List<String> or) {
+		Plan plan;
+		try {
+			plan = cache.getUnchecked(new PlanKey(kind, ancestor, filters, or));
+		} catch (UncheckedExecutionException e) {
+			// Unwrap parse errors, they're user errors.
+			if (e.getCause() instanceof IllegalArgumentException) {
+				throw (IllegalArgumentException) e.getCause();
+			}
+			throw e;
+		}
+
+		List<Query> result = Lists.newArrayListWithCapacity(plan.branches.size());
+		for(Filter filter : plan.branches) {
+			Query q;
+			if (plan.kind.isEmpty()) {
+				q = new Query(plan.ancestor);
+			} else if (plan.ancestor == null) {
+				q = new Query(plan.kind);
+			} else {
+				q = new Query(plan.kind, plan.ancestor);
+			}
+			if (filter != null) {
+				q.setFilter(filter);
+			}
+			result.add(q);
+		}
+		return result;
+	}
+
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	static Plan parse(PlanKey key) {
+		if (key.ancestor.isEmpty() && key.kind.isEmpty()) {
+			throw new IllegalArgumentException("No 'kind' or 'ancestor' argument");
+		}
+		Key ancestor = key.ancestor.isEmpty() ? null : FilterParser.parseKey(key.ancestor);
+
+		// Each branch takes all the conjuncts and one predicate of each group of alternatives.
+		List<Filter> conjuncts = Lists.newArrayListWithCapacity(key.filters.size());
+		List<List<FilterPredicate>> alternatives = Lists.newArrayList();
+		for(String filter : key.filters) {
+			FilterPredicate predicate = FilterParser.parseFilter(filter);
+			if (predicate.getOperator() == FilterOperator.IN) {
+				alternatives.add(expandIn(predicate));
+			} else {
+				conjuncts.add(predicate);
+			}
+		}
+		if (!key.or.isEmpty()) {
+			List<FilterPredicate> group = Lists.newArrayList();
+			for(String filter : key.or) {
+				FilterPredicate predicate = FilterParser.parseFilter(filter);
+				if (predicate.getOperator() == FilterOperator.IN) {
+					group.addAll(expandIn(predicate));
+				} else {
+					group.add(predicate);
+				}
+			}
+			alternatives.add(group);
+		}
+
+		int count = 1;
+		for(List<FilterPredicate> group : alternatives) {
+			count *= group.size();
+			if (count > MAX_BRANCHES) {
+				throw new IllegalArgumentException("Too many branches of OR and IN, max " + MAX_BRANCHES);
+			}
+		}
+
+		List<Filter> branches = Lists.newArrayListWithCapacity(count);
+		for(int i = 0; i < count; i++) {
+			List<Filter> predicates = Lists.newArrayList(conjuncts);
+			int rest = i;
+			for(List<FilterPredicate> group : alternatives) {
+				predicates.add(group.get(rest % group.size()));
+				rest /= group.size();
+			}
+			branches.add(and(predicates));
+		}
+		return new Plan(key.kind, ancestor, branches);
+	}
+
+	private static List<FilterPredicate> expandIn(FilterPredicate predicate) {
+		Collection<?> values = (Collection<?>) predicate.getValue();
+		List<FilterPredicate> result = Lists.newArrayListWithCapacity(values.size());
+		for(Object value : values) {
+			result.add(new FilterPredicate(predicate.getPropertyName(), FilterOperator.EQUAL, value));
+		}
+		return result;
+	}
+
+	@Nullable
+	private static Filter and(List<Filter> predicates) {
+		if (predicates.isEmpty()) {
+			return null;
+		} else if (predicates.size() == 1) {
+			return predicates.get(0);
+		} else {
+			return new CompositeFilter(CompositeFilterOperator.AND, predicates);
+		}
+	}
+
+	static class Plan {
+		final String kind;
+		@Nullable
+		final Key ancestor;
+		/** Filter of each query, null for no filter. */
+		final List<Filter> branches;
+
+		Plan(String kind, @Nullable Key ancestor, List<Filter> branches) {
+			this.kind = kind;
+			this.ancestor = ancestor;
+			this.branches = branches;
+		}
+	}
+
+	static class PlanKey {
+		final String kind;
+		final String ancestor;
+		final ImmutableList<String> filters;
+		final ImmutableList<String> or;
+
+		PlanKey(String kind, String ancestor, List<String> filters, List<String> or) {
+			this.kind = kind;
+			this.ancestor = ancestor.trim();
+			this.filters = ImmutableList.copyOf(filters);
+			this.or = ImmutableList.copyOf(or);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof PlanKey)) return false;
+			PlanKey that = (PlanKey) o;
+			return kind.equals(that.kind) && ancestor.equals(that.ancestor) && filters.equals(that.filters)
+					&& or.equals(that.or);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(kind, ancestor, filters, or);
+		}
+	}
+}
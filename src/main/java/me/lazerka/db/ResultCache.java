@@ -0,0 +1,179 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memcache of serialized responses of read endpoints.
+ *
+ * Entries are bucketed by kind: key includes bucket's generation counter, so bumping the counter makes all
+ * entries of the kind unreachable, and they expire by themselves. There's also a global generation for deletes
+ * that don't know their kind (ancestor-only).
+ *
+ * Data can also be changed by other apps, so TTL is the only guarantee of freshness.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class ResultCache {
+	private static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+	/** Bucket for kindless (ancestor-only) queries. */
+	static final String ANY_KIND = "*";
+
+	private static final String PREFIX = "db.cache:";
+	private static final String GENERATION_PREFIX = PREFIX + "gen:";
+	private static final String GLOBAL_GENERATION = GENERATION_PREFIX + "*global*";
+
+	/** Serializes `request` params, not responses. */
+	private static final ObjectMapper REQUEST_MAPPER = new ObjectMapper();
+
+	private final MemcacheService memcache;
+	private final ObjectMapper objectMapper;
+	private final ObjectMapper smileMapper;
+	private final int ttlSeconds;
+	private final int maxEntryBytes;
+
+	@Inject
+	public ResultCache(
+			MemcacheService memcache,
+			ObjectMapper objectMapper,
+			@Named("smile") ObjectMapper smileMapper,
+			@Named("cache.ttlSeconds") int ttlSeconds,
+			@Named("cache.maxEntryBytes") int maxEntryBytes
+	) {
+		this.memcache = memcache;
+		this.objectMapper = objectMapper;
+		this.smileMapper = smileMapper;
+		this.ttlSeconds = ttlSeconds;
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	/**
+	 * Normalized request description, to be used as `request` argument.
+	 * Params are JSON-encoded, so that e.g. a filter containing a comma is not taken for two filters.
+	 */
+	public static String request(String endpoint, Object... params) {
+		try {
+			return endpoint + '?' + REQUEST_MAPPER.writeValueAsString(params);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Cached response, or null on miss.
+	 */
+	@Nullable
+	public Response get(String kind, String request, MediaType type) {
+		if (ttlSeconds <= 0) {
+			return null;
+		}
+		String key = key(kind, request, type);
+		Cached cached = (Cached) memcache.get(key);
+		if (cached == null) {
+			logger.debug("Miss {}", key);
+			return null;
+		}
+		logger.debug("Hit {}", key);
+		return cached.toResponse();
+	}
+
+	/**
+	 * Serializes `entity` to JSON or Smile, caches if not too big, and returns response with the serialized body.
+	 *
+	 * @param cursor Value for {@link DBResource#CURSOR_HEADER}.
+	 */
+	public Response put(String kind, String request, Object entity, @Nullable String cursor, MediaType type)
+			throws IOException {
+		ObjectMapper mapper = type.equals(DBResource.SMILE_TYPE) ? smileMapper : objectMapper;
+		return put(kind, request, mapper.writeValueAsBytes(entity), cursor, type);
+	}
+
+	/**
+	 * Same, for a body that's already serialized as `type`.
+	 */
+	public Response put(String kind, String request, byte[] body, @Nullable String cursor, MediaType type) {
+		Cached cached = new Cached(body, cursor, type.toString());
+		if (ttlSeconds > 0 && cached.body.length <= maxEntryBytes) {
+			memcache.put(key(kind, request, type), cached, Expiration.byDeltaSeconds(ttlSeconds));
+		} else {
+			logger.debug("Not caching {} bytes", cached.body.length);
+		}
+		return cached.toResponse();
+	}
+
+	/**
+	 * Makes all cached entries of the kind stale. Empty kind means all kinds.
+	 */
+	public void invalidate(String kind) {
+		if (kind.isEmpty()) {
+			bump(GLOBAL_GENERATION);
+		} else {
+			bump(GENERATION_PREFIX + kind);
+			bump(GENERATION_PREFIX + ANY_KIND);
+		}
+	}
+
+	private void bump(String generationKey) {
+		memcache.increment(generationKey, 1L, System.currentTimeMillis());
+	}
+
+	private String key(String kind, String request, MediaType type) {
+		String bucket = kind.isEmpty() ? ANY_KIND : kind;
+		String bucketGeneration = GENERATION_PREFIX + bucket;
+
+		List<String> generationKeys = ImmutableList.of(GLOBAL_GENERATION, bucketGeneration);
+		Map<String, Object> generations = memcache.getAll(generationKeys);
+		return PREFIX + generation(generations, GLOBAL_GENERATION) + '.'
+				+ generation(generations, bucketGeneration) + ':' + type + ':' + bucket + ':' + request;
+	}
+
+	private long generation(Map<String, Object> generations, String generationKey) {
+		Object value = generations.get(generationKey);
+		if (value != null) {
+			return (Long) value;
+		}
+		// Initial value is current time, so that if counter gets evicted, old entries don't become reachable again.
+		return memcache.increment(generationKey, 0L, System.currentTimeMillis());
+	}
+
+	static class Cached implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final byte[] body;
+		@Nullable
+		final String cursor;
+		final String type;
+
+		Cached(byte[] body, @Nullable String cursor, String type) {
+			this.body = body;
+			this.cursor = cursor;
+			this.type = type;
+		}
+
+		Response toResponse() {
+			Response.ResponseBuilder builder = Response.ok(body, type);
+			if (cursor != null) {
+				builder.header(DBResource.CURSOR_HEADER, cursor);
+			}
+			return builder.build();
+		}
+	}
+}
@@ -1,19 +1,22 @@
 package me.lazerka.db;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.datastore.*;
 import com.google.appengine.api.users.User;
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import me.lazerka.db.Row.Value;
 import org.joda.time.DateTime;
+import org.joda.time.format.ISODateTimeFormat;
+
+import javax.annotation.Nullable;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -21,18 +24,149 @@ import static com.google.common.base.Preconditions.checkArgument;
  * @author Dzmitry Lazerka
  */
 public class Row extends LinkedHashMap<String, Value> {
+    /**
+     * @param fields Properties to convert, null for all.
+     */
+    public static Row of(Entity entity, @Nullable Set<String> fields) {
+        return of(entity, fields, Value.MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength Values are truncated to that many characters.
+     */
+    public static Row of(Entity entity, @Nullable Set<String> fields, int maxLength) {
+        Row row = new Row();
+        row.put(Entity.KEY_RESERVED_PROPERTY, Value.of(entity.getKey(), maxLength));
+        if (fields == null) {
+            for(Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+                row.put(entry.getKey(), Value.of(entry.getValue(), maxLength));
+            }
+        } else {
+            for(String field : fields) {
+                if (entity.hasProperty(field)) {
+                    row.put(field, Value.of(entity.getProperty(field), maxLength));
+                }
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Rebuilds entity by parsing values according to their types.
+     *
+     * Row doesn't tell whether a property was indexed, so all of them are set as indexed (except Text and Blob,
+     * which never are), even if they were unindexed in the exported entity. That adds index writes, and makes them
+     * visible to queries. Multi-valued properties are written without type, so such rows are rejected.
+     *
+     * @param kind Of new entity with allocated id, if row has no __key__.
+     */
+    public Entity toEntity(String kind) {
+        Entity entity;
+        Value key = get(Entity.KEY_RESERVED_PROPERTY);
+        if (key != null) {
+            checkArgument(key.type == Value.Type.KEY, "__key__ must be KEY");
+            entity = new Entity((Key) Value.Type.KEY.fromString(key.value));
+        } else {
+            checkArgument(!kind.isEmpty(), "Neither __key__ nor kind given");
+            entity = new Entity(kind);
+        }
+
+        for(Map.Entry<String, Value> entry : entrySet()) {
+            String name = entry.getKey();
+            Value value = entry.getValue();
+            if (name.equals(Entity.KEY_RESERVED_PROPERTY)) {
+                continue;
+            }
+            checkArgument(value != null && value.type != null && value.value != null, "No value or type of " + name);
+            entity.setProperty(name, value.type.fromString(value.value));
+        }
+        return entity;
+    }
+
     public static class Value {
+        static final int MAX_LENGTH = 2048;
+
         @JsonProperty
         String value;
 
         @JsonProperty
         Type type;
 
-        public Value(String value, Type type) {
+        @JsonCreator
+        public Value(@JsonProperty("value") String value, @JsonProperty("type") Type type) {
             this.value = value;
             this.type = type;
         }
 
+        public static Value of(@Nullable Object value) {
+            return of(value, MAX_LENGTH);
+        }
+
+        static Value of(@Nullable Object value, int maxLength) {
+            return new Value(format(value, maxLength), typeOf(value));
+        }
+
+        /**
+         * Human-readable representation, truncated to {@link #MAX_LENGTH}.
+         */
+        public static String format(@Nullable Object value) {
+            return format(value, MAX_LENGTH);
+        }
+
+        static String format(@Nullable Object value, int maxLength) {
+            String valueStr;
+            if (value == null) {
+                valueStr = "null";
+            } else if (value instanceof Date) {
+                long ms = ((Date) value).getTime();
+                DateTime dt = new DateTime(ms);
+                valueStr = ISODateTimeFormat.dateTime().print(dt);
+            } else if (value instanceof EmbeddedEntity) {
+                EmbeddedEntity embeddedEntity = (EmbeddedEntity) value;
+                StringBuilder sb = new StringBuilder();
+                Map<String, Object> props = embeddedEntity.getProperties();
+                for(String key : props.keySet()) {
+                    String val = String.valueOf(props.get(key));
+                    sb.append(key).append(": ").append(val).append('\n');
+                }
+                valueStr = "<EmbeddedEntity:\n" + sb + ">";
+            } else if (value instanceof Text) {
+                valueStr = ((Text) value).getValue();
+            } else if (value instanceof Email) {
+                valueStr = ((Email) value).getEmail();
+            } else if (value instanceof PhoneNumber) {
+                valueStr = ((PhoneNumber) value).getNumber();
+            } else if (value instanceof PostalAddress) {
+                valueStr = ((PostalAddress) value).getAddress();
+            } else if (value instanceof Category) {
+                valueStr = ((Category) value).getCategory();
+            } else if (value instanceof Rating) {
+                valueStr = String.valueOf(((Rating) value).getRating());
+            } else if (value instanceof BlobKey) {
+                valueStr = ((BlobKey) value).getKeyString();
+            } else if (value instanceof User) {
+                // As Type.USER parses it.
+                User user = (User) value;
+                valueStr = user.getEmail() + ':' + user.getAuthDomain()
+                        + (user.getUserId() == null ? "" : ":" + user.getUserId());
+            } else if (value instanceof RawValue) {
+                // Untyped projection.
+                Object raw = ((RawValue) value).getValue();
+                valueStr = raw instanceof byte[] ? new String((byte[]) raw, Charsets.UTF_8) : String.valueOf(raw);
+            } else {
+                valueStr = String.valueOf(value);
+            }
+
+            if (valueStr.length() > maxLength) {
+                valueStr = valueStr.substring(0, maxLength);
+            }
+            return valueStr;
+        }
+
+        public static Type typeOf(@Nullable Object value) {
+            return value == null ? Type.NULL : Type.fromClass(value.getClass());
+        }
+
 	    /**
 	     * As of 1.9.7.
 	     */
@@ -173,26 +307,9 @@ public class Row extends LinkedHashMap<String, Value> {
 		    },
 
 		    KEY(Key.class) {
-			    Pattern idPattern = Pattern.compile("\\(([0-9]+)\\)$");
-
 			    @Override
 			    Key fromString(String str) {
-				    checkArgument(str.charAt(str.length() - 1) == ')', str);
-				    Matcher matcher = idPattern.matcher(str);
-				    if (matcher.find()) {
-					    long id = Long.parseLong(matcher.group(1));
-					    int slashIndex = str.lastIndexOf('/');
-					    if (slashIndex == -1) {
-						    String kind = str.substring(0, matcher.start());
-						    return KeyFactory.createKey(kind, id);
-					    } else {
-						    String kind = str.substring(slashIndex + 1, matcher.start());
-						    Key parent = fromString(str.substring(0, slashIndex));
-							return KeyFactory.createKey(parent, kind, id);
-					    }
-				    } else {
-					    throw new UnsupportedOperationException("String key names not supported yet: " + str);
-				    }
+				    return FilterParser.parseKey(str);
 			    }
 		    },
 		    BLOB_KEY(BlobKey.class) {
@@ -210,7 +327,7 @@ public class Row extends LinkedHashMap<String, Value> {
 		    NULL() {
 			    @Override
 			    Object fromString(String str) {
-				    checkArgument(str.equals(""), str);
+				    checkArgument(str.equals("") || str.equals("null"), str);
 				    return null;
 			    }
 		    },
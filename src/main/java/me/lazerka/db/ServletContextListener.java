@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Stage;
 
 /**
  * @author Dzmitry Lazerka
@@ -28,7 +29,10 @@ public class ServletContextListener implements javax.servlet.ServletContextListe
 
         ServletContext servletContext = servletContextEvent.getServletContext();
 
-        Injector injector = Guice.createInjector(new DbModule());
+        // Production stage creates all singletons now, so that the loading request pays for them, not the first user.
+        long start = System.currentTimeMillis();
+        Injector injector = Guice.createInjector(Stage.PRODUCTION, new DbModule());
+        injector.getInstance(Startup.class).record("injector", System.currentTimeMillis() - start);
         servletContext.setAttribute(INJECTOR_NAME, injector);
     }
 
@@ -0,0 +1,618 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Rating;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import me.lazerka.db.Row.Value;
+import me.lazerka.db.Row.Value.Type;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Columnar file of rows of a kind, for querying it offline by {@link SnapshotQuery}, built from NDJSON that
+ * {@link Exporter} writes.
+ *
+ * Each property is a column of a type tag and an 8-byte cell per row. Tag is {@link #MISSING}, {@link #UNTYPED}
+ * (values without a type, like lists), or {@link Type} ordinal + 1. Integers, ratings, booleans and dates (as
+ * millis) are kept in cells as longs, floating numbers as their bits. Other types are dictionary-encoded: cell
+ * is an index into sorted distinct values of that column and type, so that comparing cells compares values.
+ *
+ * File is memory-mapped to read, so only columns that are used get paged in. Size is limited to 2GB.
+ *
+ * Layout, big-endian: magic, header length, header; then of each column: tags, cells, and of each its dictionary:
+ * offsets of values (size + 1 ints, relative to the first value), then UTF-8 values.
+ * Header: rows, columns, and of each column: name, offsets of tags and cells, dictionaries,
+ * and of each dictionary: tag, size, offset.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class Snapshot {
+	private static final int MAGIC = 0x44425331; // "DBS1"
+
+	/** Tag of rows that don't have the property. */
+	static final byte MISSING = 0;
+
+	/** Tag of values without a type, kept as strings. */
+	static final byte UNTYPED = -1;
+
+	private static final Type[] TYPES = Type.values();
+
+	/** How values of a type are kept in cells. */
+	enum Encoding {
+		LONG,
+		DOUBLE,
+		DICTIONARY
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int rows;
+	private final Map<String, Column> columns = Maps.newLinkedHashMap();
+
+	private Snapshot(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		checkArgument(buffer.getInt(0) == MAGIC, "Not a snapshot");
+		byte[] header = new byte[buffer.getInt(4)];
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(8);
+		duplicate.get(header);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+		rows = in.readInt();
+		int columnCount = in.readInt();
+		for(int i = 0; i < columnCount; i++) {
+			String name = in.readUTF();
+			int tagsOffset = (int) in.readLong();
+			int cellsOffset = (int) in.readLong();
+			Dictionary[] dictionaries = new Dictionary[256];
+			int dictionaryCount = in.readInt();
+			for(int j = 0; j < dictionaryCount; j++) {
+				byte tag = in.readByte();
+				int size = in.readInt();
+				int offset = (int) in.readLong();
+				dictionaries[tag & 0xFF] = new Dictionary(type(tag), size, offset);
+			}
+			columns.put(name, new Column(name, tagsOffset, cellsOffset, dictionaries));
+		}
+	}
+
+	/**
+	 * Maps the file to memory. The file must not be changed while the snapshot is used.
+	 */
+	public static Snapshot open(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		     FileChannel channel = randomAccessFile.getChannel()) {
+			checkArgument(channel.size() <= Integer.MAX_VALUE, "Snapshot is larger than 2GB: " + file);
+			// Mapping stays valid after channel is closed.
+			return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Reads NDJSON rows, skipping blank and resume lines, and writes them to `file`.
+	 * A row with a __key__ seen before replaces the earlier one, as a resumed export repeats some rows.
+	 *
+	 * @return Number of rows written.
+	 */
+	public static int build(BufferedReader ndjson, ObjectMapper objectMapper, File file) throws IOException {
+		ObjectReader reader = objectMapper.reader(Row.class);
+		Builder builder = new Builder();
+		String line;
+		while ((line = ndjson.readLine()) != null) {
+			if (line.trim().isEmpty() || line.startsWith("{\"cursor\"") || line.startsWith("{\"resume\"")) {
+				continue;
+			}
+			Row row = reader.readValue(line);
+			builder.add(row);
+		}
+		builder.write(file);
+		return builder.rows;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * @return Columns in the order properties first appeared in.
+	 */
+	public List<Column> columns() {
+		return ImmutableList.copyOf(columns.values());
+	}
+
+	@Nullable
+	public Column column(String name) {
+		return columns.get(name);
+	}
+
+	static byte tag(@Nullable Type type) {
+		return type == null ? UNTYPED : (byte) (type.ordinal() + 1);
+	}
+
+	/**
+	 * @return Null for {@link #UNTYPED}.
+	 */
+	@Nullable
+	static Type type(byte tag) {
+		checkArgument(tag != MISSING, "No type of missing value");
+		return tag == UNTYPED ? null : TYPES[tag - 1];
+	}
+
+	/**
+	 * Order of types in datastore, where values of different types are compared by it. Types stored the same way,
+	 * e.g. integers and dates, are of the same rank, though datastore compares their raw values.
+	 */
+	static int rank(byte tag) {
+		if (tag == UNTYPED) {
+			return Integer.MAX_VALUE;
+		}
+		switch (type(tag)) {
+			case NULL:
+				return 0;
+			case INTEGER:
+			case DATETIME:
+			case RATING:
+				return 1;
+			case BOOLEAN:
+				return 2;
+			case FLOATING:
+				return 4;
+			case GEO:
+				return 5;
+			case USER:
+				return 6;
+			case KEY:
+				return 7;
+			default:
+				// Strings, and types that are stored as strings.
+				return 3;
+		}
+	}
+
+	static Encoding encoding(@Nullable Type type) {
+		if (type == null) {
+			return Encoding.DICTIONARY;
+		}
+		switch (type) {
+			case INTEGER:
+			case RATING:
+			case BOOLEAN:
+			case DATETIME:
+			case NULL:
+				return Encoding.LONG;
+			case FLOATING:
+				return Encoding.DOUBLE;
+			default:
+				return Encoding.DICTIONARY;
+		}
+	}
+
+	/**
+	 * @param value As {@link Row.Value#format} formats it.
+	 */
+	private static long encode(Type type, String value) {
+		switch (type) {
+			case INTEGER:
+				return Long.parseLong(value);
+			case RATING:
+				return Integer.parseInt(value);
+			case BOOLEAN:
+				return Boolean.parseBoolean(value) ? 1 : 0;
+			case DATETIME:
+				return DateTime.parse(value).getMillis();
+			case FLOATING:
+				return Double.doubleToLongBits(Double.parseDouble(value));
+			case NULL:
+				return 0;
+			default:
+				throw new IllegalArgumentException(type + " is dictionary-encoded");
+		}
+	}
+
+	/**
+	 * @param value As {@link FilterParser} parses it, of a type that is not dictionary-encoded.
+	 */
+	static long encode(@Nullable Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof Double || value instanceof Float) {
+			return Double.doubleToLongBits(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof Boolean) {
+			return (Boolean) value ? 1 : 0;
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		} else if (value instanceof Rating) {
+			return ((Rating) value).getRating();
+		}
+		throw new IllegalArgumentException(value.getClass().getSimpleName() + " is dictionary-encoded");
+	}
+
+	/**
+	 * Values of a column of some type, sorted. Keys are sorted as keys, everything else as strings.
+	 */
+	class Dictionary {
+		@Nullable
+		final Type type;
+		final int size;
+		final int offset;
+
+		Dictionary(@Nullable Type type, int size, int offset) {
+			this.type = type;
+			this.size = size;
+			this.offset = offset;
+		}
+
+		String get(int code) {
+			int valuesOffset = offset + 4 * (size + 1);
+			int start = buffer.getInt(offset + 4 * code);
+			int end = buffer.getInt(offset + 4 * (code + 1));
+
+			byte[] bytes = new byte[end - start];
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(valuesOffset + start);
+			duplicate.get(bytes);
+			return new String(bytes, Charsets.UTF_8);
+		}
+
+		/**
+		 * @return Code of value, or (-(insertion point) - 1), like {@link Arrays#binarySearch}.
+		 */
+		int find(Object value) {
+			Key key = type == Type.KEY ? (Key) value : null;
+			String str = Value.format(value);
+
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				String midValue = get(mid);
+				int cmp = key == null ? midValue.compareTo(str) : FilterParser.parseKey(midValue).compareTo(key);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+	}
+
+	public class Column {
+		final String name;
+		private final int tagsOffset;
+		private final int cellsOffset;
+		/** By tag & 0xFF. */
+		private final Dictionary[] dictionaries;
+
+		Column(String name, int tagsOffset, int cellsOffset, Dictionary[] dictionaries) {
+			this.name = name;
+			this.tagsOffset = tagsOffset;
+			this.cellsOffset = cellsOffset;
+			this.dictionaries = dictionaries;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		byte tag(int row) {
+			return buffer.get(tagsOffset + row);
+		}
+
+		long cell(int row) {
+			return buffer.getLong(cellsOffset + 8 * row);
+		}
+
+		/**
+		 * @return Type as in {@link Row.Value}, null if value has none.
+		 */
+		@Nullable
+		public Type type(int row) {
+			return Snapshot.type(tag(row));
+		}
+
+		/**
+		 * @return Value as {@link Row.Value#format} formats it.
+		 */
+		public String format(int row) {
+			byte tag = tag(row);
+			Type type = Snapshot.type(tag);
+			long cell = cell(row);
+			if (encoding(type) == Encoding.DICTIONARY) {
+				return dictionaries[tag & 0xFF].get((int) cell);
+			}
+			switch (type) {
+				case BOOLEAN:
+					return cell == 0 ? "false" : "true";
+				case DATETIME:
+					return Value.format(new Date(cell));
+				case FLOATING:
+					return Value.format(Double.longBitsToDouble(cell));
+				case NULL:
+					return Value.format(null);
+				default:
+					return Long.toString(cell);
+			}
+		}
+
+		/**
+		 * @return Code of value in dictionary of values with the tag, or (-(insertion point) - 1).
+		 */
+		int find(byte tag, Object value) {
+			Dictionary dictionary = dictionaries[tag & 0xFF];
+			return dictionary == null ? -1 : dictionary.find(value);
+		}
+	}
+
+	/**
+	 * Collects rows in memory, as dictionaries can only be sorted once all values are known.
+	 */
+	private static class Builder {
+		int rows;
+		final Map<String, ColumnBuilder> columns = Maps.newLinkedHashMap();
+		final Map<String, Integer> rowsByKey = Maps.newHashMap();
+
+		void add(Row row) {
+			int index = rows;
+			Value key = row.get(Entity.KEY_RESERVED_PROPERTY);
+			if (key != null) {
+				Integer seen = rowsByKey.get(key.value);
+				if (seen == null) {
+					rowsByKey.put(key.value, index);
+				} else {
+					index = seen;
+					for(ColumnBuilder column : columns.values()) {
+						column.clear(index);
+					}
+				}
+			}
+			if (index == rows) {
+				rows++;
+			}
+
+			for(Map.Entry<String, Value> entry : row.entrySet()) {
+				ColumnBuilder column = columns.get(entry.getKey());
+				if (column == null) {
+					column = new ColumnBuilder(entry.getKey());
+					columns.put(entry.getKey(), column);
+				}
+				column.set(index, entry.getValue());
+			}
+		}
+
+		void write(File file) throws IOException {
+			for(ColumnBuilder column : columns.values()) {
+				column.sortDictionaries(rows);
+			}
+
+			// Header is of the same length with any offsets, so measure it first.
+			int headerLength = header(false).length;
+			long offset = 8 + headerLength;
+			for(ColumnBuilder column : columns.values()) {
+				column.tagsOffset = offset;
+				offset += rows;
+				column.cellsOffset = offset;
+				offset += 8L * rows;
+				for(DictionaryBuilder dictionary : column.dictionaries.values()) {
+					dictionary.offset = offset;
+					offset += dictionary.length();
+				}
+			}
+			checkArgument(offset <= Integer.MAX_VALUE, "Snapshot would be larger than 2GB");
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(headerLength);
+				out.write(header(true));
+				for(ColumnBuilder column : columns.values()) {
+					out.write(column.tags, 0, rows);
+					for(int i = 0; i < rows; i++) {
+						out.writeLong(column.cells[i]);
+					}
+					for(DictionaryBuilder dictionary : column.dictionaries.values()) {
+						dictionary.write(out);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @param withOffsets Whether offsets are computed already, otherwise zeros are written.
+		 */
+		private byte[] header(boolean withOffsets) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(rows);
+			out.writeInt(columns.size());
+			for(ColumnBuilder column : columns.values()) {
+				out.writeUTF(column.name);
+				out.writeLong(withOffsets ? column.tagsOffset : 0);
+				out.writeLong(withOffsets ? column.cellsOffset : 0);
+				out.writeInt(column.dictionaries.size());
+				for(Map.Entry<Byte, DictionaryBuilder> entry : column.dictionaries.entrySet()) {
+					out.writeByte(entry.getKey());
+					out.writeInt(entry.getValue().values.size());
+					out.writeLong(withOffsets ? entry.getValue().offset : 0);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+	}
+
+	private static class ColumnBuilder {
+		final String name;
+		byte[] tags = new byte[16];
+		long[] cells = new long[16];
+		final Map<Byte, DictionaryBuilder> dictionaries = Maps.newTreeMap();
+		long tagsOffset;
+		long cellsOffset;
+
+		ColumnBuilder(String name) {
+			this.name = name;
+		}
+
+		void set(int row, Value value) {
+			if (row >= tags.length) {
+				int capacity = Math.max(row + 1, tags.length * 2);
+				tags = Arrays.copyOf(tags, capacity);
+				cells = Arrays.copyOf(cells, capacity);
+			}
+
+			byte tag = tag(value.type);
+			checkArgument(value.value != null || value.type == Type.NULL, "No value of " + name);
+			tags[row] = tag;
+			if (encoding(value.type) == Encoding.DICTIONARY) {
+				DictionaryBuilder dictionary = dictionaries.get(tag);
+				if (dictionary == null) {
+					dictionary = new DictionaryBuilder(value.type);
+					dictionaries.put(tag, dictionary);
+				}
+				cells[row] = dictionary.code(value.value);
+			} else {
+				cells[row] = encode(value.type, value.value);
+			}
+		}
+
+		void clear(int row) {
+			if (row < tags.length) {
+				tags[row] = MISSING;
+			}
+		}
+
+		/**
+		 * Replaces codes in order of appearance with codes in order of values.
+		 */
+		void sortDictionaries(int rows) {
+			if (tags.length < rows) {
+				tags = Arrays.copyOf(tags, rows);
+				cells = Arrays.copyOf(cells, rows);
+			}
+			for(Map.Entry<Byte, DictionaryBuilder> entry : dictionaries.entrySet()) {
+				byte tag = entry.getKey();
+				int[] codes = entry.getValue().sort();
+				for(int i = 0; i < rows; i++) {
+					if (tags[i] == tag) {
+						cells[i] = codes[(int) cells[i]];
+					}
+				}
+			}
+		}
+	}
+
+	private static class DictionaryBuilder {
+		@Nullable
+		final Type type;
+		final Map<String, Integer> codes = Maps.newHashMap();
+		List<String> values = Lists.newArrayList();
+		long offset;
+		private byte[][] encoded;
+
+		DictionaryBuilder(@Nullable Type type) {
+			this.type = type;
+		}
+
+		int code(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		/**
+		 * @return New code by old code.
+		 */
+		int[] sort() {
+			final List<String> unsorted = values;
+			Integer[] order = new Integer[unsorted.size()];
+			for(int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+
+			if (type == Type.KEY) {
+				final Key[] keys = new Key[order.length];
+				for(int i = 0; i < keys.length; i++) {
+					keys[i] = FilterParser.parseKey(unsorted.get(i));
+				}
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return keys[a].compareTo(keys[b]);
+					}
+				});
+			} else {
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return unsorted.get(a).compareTo(unsorted.get(b));
+					}
+				});
+			}
+
+			int[] result = new int[order.length];
+			values = Lists.newArrayListWithCapacity(order.length);
+			encoded = new byte[order.length][];
+			for(int i = 0; i < order.length; i++) {
+				result[order[i]] = i;
+				values.add(unsorted.get(order[i]));
+				encoded[i] = unsorted.get(order[i]).getBytes(Charsets.UTF_8);
+			}
+			codes.clear();
+			return result;
+		}
+
+		long length() {
+			long result = 4L * (encoded.length + 1);
+			for(byte[] bytes : encoded) {
+				result += bytes.length;
+			}
+			return result;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			int start = 0;
+			out.writeInt(start);
+			for(byte[] bytes : encoded) {
+				start += bytes.length;
+				out.writeInt(start);
+			}
+			for(byte[] bytes : encoded) {
+				out.write(bytes);
+			}
+		}
+	}
+}
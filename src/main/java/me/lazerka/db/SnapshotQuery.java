@@ -0,0 +1,434 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import me.lazerka.db.Row.Value.Type;
+import me.lazerka.db.Snapshot.Column;
+import me.lazerka.db.Snapshot.Encoding;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Filters, sorts and counts rows of a {@link Snapshot} by scanning its columns, so without datastore reads and
+ * indexes: any property can be filtered and sorted by, including unindexed ones, and with any combination of
+ * inequalities.
+ *
+ * As in datastore, filters are ANDed, rows that don't have a filtered or sorted property are not returned, and
+ * values of different types are compared by type first, in datastore order (see {@link Snapshot#rank}). So
+ * <code>INTEGER(5)</code> never equals <code>FLOATING(5)</code>, but all strings are greater than it.
+ * Unlike datastore, lists can't be filtered on, as they're exported without a type.
+ *
+ * Usage:
+ * <pre>
+ *   SnapshotQuery build export.ndjson kind.snapshot
+ *   SnapshotQuery query kind.snapshot [--filter "age > INTEGER(30)"]... [--sort age | --sort -age]...
+ *       [--fields name,age] [--limit 100] [--count]
+ * </pre>
+ * where export.ndjson is what /db/export returns. Query writes rows as NDJSON to stdout, like /db/entity does.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class SnapshotQuery {
+	private final Snapshot snapshot;
+	private final List<FilterPredicate> filters = Lists.newArrayList();
+	private final List<Column> sortColumns = Lists.newArrayList();
+	private final List<SortDirection> sortDirections = Lists.newArrayList();
+	/** Some of sorted properties are not in snapshot at all. */
+	private boolean unknownSort;
+
+	public SnapshotQuery(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @param filter As in {@link FilterParser#parseFilter}.
+	 */
+	public SnapshotQuery filter(String filter) {
+		filters.add(FilterParser.parseFilter(filter));
+		return this;
+	}
+
+	public SnapshotQuery sort(String property, SortDirection direction) {
+		Column column = snapshot.column(property);
+		if (column == null) {
+			unknownSort = true;
+		} else {
+			sortColumns.add(column);
+			sortDirections.add(direction);
+		}
+		return this;
+	}
+
+	public int count() {
+		return matching().cardinality();
+	}
+
+	/**
+	 * @return Numbers of matching rows, in sort order, or in snapshot order if not sorted.
+	 */
+	public int[] run(int limit) {
+		BitSet matching = matching();
+		if (sortColumns.isEmpty()) {
+			int[] result = new int[Math.min(limit, matching.cardinality())];
+			int row = matching.nextSetBit(0);
+			for(int i = 0; i < result.length; i++, row = matching.nextSetBit(row + 1)) {
+				result[i] = row;
+			}
+			return result;
+		}
+
+		Integer[] rows = new Integer[matching.cardinality()];
+		int i = 0;
+		for(int row = matching.nextSetBit(0); row >= 0; row = matching.nextSetBit(row + 1)) {
+			rows[i++] = row;
+		}
+		Arrays.sort(rows, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return compareRows(a, b);
+			}
+		});
+
+		int[] result = new int[Math.min(limit, rows.length)];
+		for(i = 0; i < result.length; i++) {
+			result[i] = rows[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Column by column, so that each is read sequentially, and the next filter only looks at rows left.
+	 */
+	private BitSet matching() {
+		BitSet result = new BitSet(snapshot.rows());
+		if (unknownSort) {
+			return result;
+		}
+		result.set(0, snapshot.rows());
+
+		for(FilterPredicate filter : filters) {
+			Column column = snapshot.column(filter.getPropertyName());
+			if (column == null) {
+				result.clear();
+				return result;
+			}
+
+			List<Matcher> matchers = Lists.newArrayList();
+			if (filter.getOperator() == FilterOperator.IN) {
+				for(Object value : (Collection<?>) filter.getValue()) {
+					matchers.add(new Matcher(column, FilterOperator.EQUAL, value));
+				}
+			} else {
+				matchers.add(new Matcher(column, filter.getOperator(), filter.getValue()));
+			}
+
+			for(int row = result.nextSetBit(0); row >= 0; row = result.nextSetBit(row + 1)) {
+				if (!matches(matchers, column.tag(row), column.cell(row))) {
+					result.clear(row);
+				}
+			}
+		}
+
+		for(Column column : sortColumns) {
+			for(int row = result.nextSetBit(0); row >= 0; row = result.nextSetBit(row + 1)) {
+				if (column.tag(row) == Snapshot.MISSING) {
+					result.clear(row);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(List<Matcher> matchers, byte tag, long cell) {
+		for(Matcher matcher : matchers) {
+			if (matcher.matches(tag, cell)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * By type first, then by value, then by row number, which is key order for an export.
+	 */
+	private int compareRows(int a, int b) {
+		for(int i = 0; i < sortColumns.size(); i++) {
+			Column column = sortColumns.get(i);
+			byte tagA = column.tag(a);
+			byte tagB = column.tag(b);
+			int result = compareTypes(tagA, tagB);
+			if (result == 0) {
+				long cellA = column.cell(a);
+				long cellB = column.cell(b);
+				if (Snapshot.encoding(Snapshot.type(tagA)) == Encoding.DOUBLE) {
+					result = Double.compare(Double.longBitsToDouble(cellA), Double.longBitsToDouble(cellB));
+				} else {
+					result = Long.compare(cellA, cellB);
+				}
+			}
+			if (result != 0) {
+				return sortDirections.get(i) == SortDirection.DESCENDING ? -result : result;
+			}
+		}
+		return Integer.compare(a, b);
+	}
+
+	private static int compareTypes(byte tagA, byte tagB) {
+		int result = Integer.compare(Snapshot.rank(tagA), Snapshot.rank(tagB));
+		// Types of the same rank don't mix in practice, but order must be total.
+		return result == 0 ? Integer.compare(tagA & 0xFF, tagB & 0xFF) : result;
+	}
+
+	/**
+	 * Writes rows like {@link EntityJson} does, one per line.
+	 *
+	 * @param fields Properties to write, null for all. __key__ is always written.
+	 */
+	public void write(int[] rows, @Nullable Collection<String> fields, JsonGenerator generator) throws IOException {
+		List<Column> columns = Lists.newArrayList();
+		Column keyColumn = snapshot.column(Entity.KEY_RESERVED_PROPERTY);
+		if (keyColumn != null) {
+			columns.add(keyColumn);
+		}
+		for(Column column : snapshot.columns()) {
+			if (column != keyColumn && (fields == null || fields.contains(column.name()))) {
+				columns.add(column);
+			}
+		}
+
+		generator.setRootValueSeparator(new SerializedString("\n"));
+		for(int row : rows) {
+			generator.writeStartObject();
+			for(Column column : columns) {
+				if (column.tag(row) == Snapshot.MISSING) {
+					continue;
+				}
+				generator.writeObjectFieldStart(column.name());
+				generator.writeStringField("value", column.format(row));
+				Type type = column.type(row);
+				if (type == null) {
+					generator.writeNullField("type");
+				} else {
+					generator.writeStringField("type", type.name());
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		if (rows.length > 0) {
+			generator.writeRaw('\n');
+		}
+		generator.flush();
+	}
+
+	/**
+	 * Filter turned into comparison of cells, so that rows don't need to be decoded.
+	 */
+	private static class Matcher {
+		final FilterOperator operator;
+		final byte tag;
+		final Encoding encoding;
+		/**
+		 * For dictionary, cells are doubled, and value that is not in it is between cells of its neighbours,
+		 * so that inequalities still work.
+		 */
+		final long bound;
+
+		Matcher(Column column, FilterOperator operator, @Nullable Object value) {
+			this.operator = operator;
+			Type type = Row.Value.typeOf(value);
+			if (type == null) {
+				throw new IllegalArgumentException("Unsupported value " + value.getClass().getSimpleName());
+			}
+			this.tag = Snapshot.tag(type);
+			this.encoding = Snapshot.encoding(type);
+
+			if (encoding == Encoding.DICTIONARY) {
+				int code = column.find(tag, value);
+				bound = code >= 0 ? 2L * code : 2L * (-code - 1) - 1;
+			} else {
+				bound = Snapshot.encode(value);
+			}
+		}
+
+		boolean matches(byte cellTag, long cell) {
+			if (cellTag == Snapshot.MISSING) {
+				return false;
+			}
+			int cmp = compare(cellTag, cell);
+			switch (operator) {
+				case EQUAL:
+					return cmp == 0;
+				case NOT_EQUAL:
+					return cmp != 0;
+				case LESS_THAN:
+					return cmp < 0;
+				case LESS_THAN_OR_EQUAL:
+					return cmp <= 0;
+				case GREATER_THAN:
+					return cmp > 0;
+				case GREATER_THAN_OR_EQUAL:
+					return cmp >= 0;
+				default:
+					throw new IllegalArgumentException("Unsupported operator " + operator);
+			}
+		}
+
+		private int compare(byte cellTag, long cell) {
+			if (cellTag != tag) {
+				return compareTypes(cellTag, tag);
+			}
+			switch (encoding) {
+				case DOUBLE:
+					return Double.compare(Double.longBitsToDouble(cell), Double.longBitsToDouble(bound));
+				case DICTIONARY:
+					return Long.compare(2 * cell, bound);
+				default:
+					return Long.compare(cell, bound);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || !(args[0].equals("build") && args.length == 3 || args[0].equals("query"))) {
+			System.err.println("Usage: SnapshotQuery build export.ndjson kind.snapshot");
+			System.err.println("       SnapshotQuery query kind.snapshot [--filter F]... [--sort [-]property]... "
+					+ "[--fields a,b] [--limit N] [--count]");
+			System.exit(2);
+		}
+		// Keys can't be created without it.
+		ApiProxy.setEnvironmentForCurrentThread(new OfflineEnvironment());
+		ObjectMapper objectMapper = new ObjectMapper();
+		long start = System.currentTimeMillis();
+
+		if (args[0].equals("build")) {
+			int rows;
+			try (BufferedReader reader =
+					     new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), Charsets.UTF_8))) {
+				rows = Snapshot.build(reader, objectMapper, new File(args[2]));
+			}
+			System.err.printf("%d rows in %dms%n", rows, System.currentTimeMillis() - start);
+			return;
+		}
+
+		SnapshotQuery query = new SnapshotQuery(Snapshot.open(new File(args[1])));
+		List<String> fields = null;
+		int limit = Integer.MAX_VALUE;
+		boolean count = false;
+		for(int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+				case "--filter":
+					query.filter(args[++i]);
+					break;
+				case "--sort":
+					String sort = args[++i];
+					if (sort.startsWith("-")) {
+						query.sort(sort.substring(1), SortDirection.DESCENDING);
+					} else {
+						query.sort(sort, SortDirection.ASCENDING);
+					}
+					break;
+				case "--fields":
+					fields = Splitter.on(',').omitEmptyStrings().trimResults().splitToList(args[++i]);
+					break;
+				case "--limit":
+					limit = Integer.parseInt(args[++i]);
+					break;
+				case "--count":
+					count = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		if (count) {
+			System.out.println(query.count());
+		} else {
+			int[] rows = query.run(limit);
+			OutputStream output = System.out;
+			query.write(rows, fields, objectMapper.getFactory().createGenerator(output));
+		}
+		System.err.printf("%dms%n", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Just enough of GAE environment to parse and compare keys, which only works inside an app otherwise.
+	 */
+	private static class OfflineEnvironment implements ApiProxy.Environment {
+		private final Map<String, Object> attributes = new HashMap<>();
+
+		@Override
+		public String getAppId() {
+			return "snapshot";
+		}
+
+		@Override
+		public String getModuleId() {
+			return "default";
+		}
+
+		@Override
+		public String getVersionId() {
+			return "1";
+		}
+
+		@Override
+		public String getEmail() {
+			return null;
+		}
+
+		@Override
+		public boolean isLoggedIn() {
+			return false;
+		}
+
+		@Override
+		public boolean isAdmin() {
+			return false;
+		}
+
+		@Override
+		public String getAuthDomain() {
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public String getRequestNamespace() {
+			return "";
+		}
+
+		@Override
+		public Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		@Override
+		public long getRemainingMillis() {
+			return Long.MAX_VALUE;
+		}
+	}
+}
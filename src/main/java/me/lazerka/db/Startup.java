@@ -0,0 +1,76 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Map;
+
+/**
+ * Durations of startup phases of this instance, so that one can see what a cold request waits for.
+ *
+ * Phases are recorded by {@link ServletContextListener} (injector), {@link BypassGuiceFilter} (Jersey) and
+ * {@link WarmupResource} (the rest), in the order they finish. Each also goes to {@link Metrics}.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+public class Startup {
+	private static final Logger logger = LoggerFactory.getLogger(Startup.class);
+
+	private final Metrics metrics;
+	private final long createdAtMs = System.currentTimeMillis();
+	private final Map<String, Long> phases = Maps.newLinkedHashMap();
+	private boolean warmedUp;
+
+	@Inject
+	public Startup(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public synchronized void record(String phase, long millis) {
+		phases.put(phase, millis);
+		metrics.histogram("db_startup_ms", "Duration of startup phases.", "phase", phase).record(millis);
+		logger.info("Startup phase {} took {}ms", phase, millis);
+	}
+
+	/**
+	 * @return Whether warmup is to be done now, i.e. it's the first call.
+	 */
+	public synchronized boolean startWarmup() {
+		boolean first = !warmedUp;
+		warmedUp = true;
+		return first;
+	}
+
+	public synchronized Report report() {
+		Report result = new Report();
+		result.phases = Maps.newLinkedHashMap(phases);
+		for(long millis : phases.values()) {
+			result.totalMs += millis;
+		}
+		result.uptimeMs = System.currentTimeMillis() - createdAtMs;
+		result.warmedUp = warmedUp;
+		return result;
+	}
+
+	public static class Report {
+		/** Phase -> milliseconds. */
+		@JsonProperty
+		Map<String, Long> phases;
+
+		@JsonProperty
+		long totalMs;
+
+		/** Since the injector was created. */
+		@JsonProperty
+		long uptimeMs;
+
+		/** Whether warmup was done, by a warmup request or by a call to it. */
+		@JsonProperty
+		boolean warmedUp;
+	}
+}
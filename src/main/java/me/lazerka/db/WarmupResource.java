@@ -0,0 +1,117 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.ObjectifyService;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Handles warmup requests, which GAE sends to a new instance before routing users to it, so that they don't pay
+ * for what is otherwise initialized on the first request: Objectify, Jackson serializers of our responses,
+ * metadata of {@link MetadataCatalog}, datastore and memcache clients.
+ *
+ * Injector and Jersey are ready by the time this is called, their timings are recorded at startup.
+ *
+ * @author Dzmitry Lazerka
+ */
+@Singleton
+@Path("/_ah/warmup")
+public class WarmupResource {
+	/** Parsed to load and warm up FilterParser and Row.Value types. */
+	private static final List<String> FILTERS = ImmutableList.of(
+			"age > INTEGER(30)",
+			"created >= DATETIME(2014-05-13T16:53:20.001Z)",
+			"owner = KEY(Level0(12)/Level1(\"name\"))");
+
+	@Inject
+	Startup startup;
+
+	@Inject
+	MetadataCatalog catalog;
+
+	@Inject
+	ResultCache resultCache;
+
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	@Named("smile")
+	ObjectMapper smileMapper;
+
+	/**
+	 * Only the first call warms up, the next ones just report.
+	 */
+	@GET
+	@Produces("application/json")
+	public Startup.Report warmup() throws IOException {
+		if (startup.startWarmup()) {
+			long start = System.currentTimeMillis();
+			ObjectifyService.ofy();
+			start = phase("objectify", start);
+
+			for(String filter : FILTERS) {
+				FilterParser.parseFilter(filter);
+			}
+			start = phase("parser", start);
+
+			warmUpJackson();
+			start = phase("jackson", start);
+
+			// Also the first datastore calls.
+			catalog.kinds();
+			start = phase("catalog", start);
+
+			resultCache.get("warmup", "warmup", MediaType.APPLICATION_JSON_TYPE);
+			phase("memcache", start);
+		}
+		return startup.report();
+	}
+
+	/**
+	 * Jackson builds a serializer on first use of each class, so serializes what endpoints return, both ways.
+	 */
+	private void warmUpJackson() throws IOException {
+		Entity entity = new Entity(KeyFactory.createKey("Warmup", 1));
+		entity.setProperty("string", "value");
+		entity.setProperty("integer", 1L);
+		entity.setProperty("date", new Date(0));
+		entity.setUnindexedProperty("text", new Text("value"));
+		List<Entity> entities = Lists.newArrayList(entity);
+
+		EntityJson.Rows rows = new EntityJson.Rows(entities, null);
+		ColumnarRows columnar = new ColumnarRows(1);
+		columnar.add(entity, null);
+
+		byte[] json = objectMapper.writeValueAsBytes(rows);
+		objectMapper.writeValueAsBytes(columnar);
+		smileMapper.writeValueAsBytes(rows);
+		smileMapper.writeValueAsBytes(columnar);
+		objectMapper.writeValueAsBytes(startup.report());
+
+		// As in import.
+		JsonNode row = objectMapper.readTree(json).get(0);
+		objectMapper.reader(Row.class).readValue(row);
+	}
+
+	private long phase(String phase, long start) {
+		long now = System.currentTimeMillis();
+		startup.record(phase, now - start);
+		return now;
+	}
+}
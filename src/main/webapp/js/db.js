@@ -7,13 +7,17 @@ String.prototype.escapeHTML = function () {
     );
 };
 const ROOT = '/db';
+// Cursor returned by last list request, if there are more entities.
+var nextCursor = null;
 function fillFields(query) {
 	$('#kind').val(query.kind);
 	if (query.ancestor) $('#ancestor').val(query.ancestor);
 	$('#limit').val(query.limit);
+	if (query.fields) $('#fields').val(query.fields.join(', '));
 	query.filters.forEach(function(filter){
 		var div = addFilterInput();
-		var regExp = new RegExp('^([^<>=!]+) ([<>=!]+) (String|Long|Key|Boolean|Email|Null)\\(([^\\)]*)\\)$', 'i');
+		// Same grammar as FilterParser.java.
+		var regExp = new RegExp('^(.+?) ([<>=!]+|IN) (\\w+)\\((.*)\\)$', 'i');
 		var match = regExp.exec(filter);
 		if (!match || !match[0]) {
 			throw new Error('Cannot parse filter: ' + filter);
@@ -38,6 +42,8 @@ function getValidatedQuery() {
 	} else {
 		if (kind) query.kind = kind;
 		if (query && ancestor) query.ancestor = ancestor;
+		var fields = $('#fields').val().trim();
+		if (fields) query.fields = fields.split(/\s*,\s*/);
 		var filters = [];
 		$('.filter').each(function(i, div) {
 			var name = $('.name', div).val();
@@ -64,67 +70,170 @@ function refreshKinds() {
 		if (!$('#kind').val() && kinds.length) {
 			$('#kind').val(kinds[0]);
 		}
+		refreshProperties();
 	});
 }
-function refresh() {
+function refreshProperties() {
+	var kind = $('#kind').val();
+	if (!kind) return;
+	$.get(ROOT + '/kind/' + encodeURIComponent(kind) + '/properties', {}, 'json').done(function(properties) {
+		var datalist = $('datalist#properties').empty();
+		datalist.append('<option value="__key__"/>');
+		$.each(properties, function(name, representations) {
+			datalist.append('<option value="' + name.escapeHTML() + '" label="' + representations.join(', ') + '"/>');
+		});
+	});
+}
+// Rows of the current listing as they come from the stream, objects of property name to {value, type}.
+var rows = [];
+// Property names in order of appearance, __key__ first.
+var columns = [];
+var columnSet = {};
+// Request of the current listing, while it's streaming.
+var listing = null;
+// Fixed, same as in CSS, so that visible rows are known from scroll position without measuring.
+const ROW_HEIGHT = 18;
+// Rows rendered above and below the visible ones, so that scrolling doesn't show blanks.
+const OVERSCAN = 20;
+// What's in tbody now.
+var rendered = {first: -1, last: -1, columns: -1};
+var renderScheduled = false;
+
+function refresh(cursor) {
 	var query = getValidatedQuery();
 	if (!query) return;
+	if (cursor) query.cursor = cursor;
 	document.title = 'Loading...';
 
-	$.get(ROOT + '/entity', $.param(query, true)).done(function(data, textStatus, jqXHR) {
-		document.title = (query.ancestor == undefined ? '' : query.ancestor) + ' ' + query.kind;
-		if (data.error) {
-			alert(data.error);
-			return;
-		}
-		// name -> column index
-		var columns = {};
-		// array of arrays
-		var matrix = [];
-		data.forEach(function(entity) {
-			var row = [];
-			for (column in entity) {
-				column = column.escapeHTML();
-				if (columns[column] === undefined) {
-					columns[column] = Object.keys(columns).length;
-				}
-				row[columns[column]] = entity[column];
+	if (listing) listing.abort();
+	rows = [];
+	columns = [];
+	columnSet = {};
+	nextCursor = null;
+	$('#next').prop('disabled', true);
+	$('#scroller').scrollTop(0);
+	scheduleRender();
+
+	// Rows are rendered while they're being fetched, instead of after the whole response.
+	var params = $.extend({stream: true}, query);
+	var xhr = new XMLHttpRequest();
+	listing = xhr;
+	var parsed = 0;
+	function consume(complete) {
+		var text = xhr.responseText;
+		var end = complete ? text.length : text.lastIndexOf('\n') + 1;
+		if (end <= parsed) return;
+		text.substring(parsed, end).split('\n').forEach(function(line) {
+			if (!line) return;
+			var row = JSON.parse(line);
+			if (row.cursor !== undefined && !row.__key__) {
+				nextCursor = row.cursor;
+			} else {
+				addRow(row);
 			}
-			matrix.push(row);
 		});
-		// string builder for innerHtml
+		parsed = end;
+		scheduleRender();
+	}
+	xhr.open('GET', ROOT + '/entity?' + $.param(params, true));
+	xhr.setRequestHeader('Accept', 'application/x-ndjson');
+	xhr.setRequestHeader('X-Login-Return-Url', location.href);
+	xhr.onprogress = function() {
+		if (xhr.status == 200) consume(false);
+	};
+	xhr.onload = function() {
+		if (listing != xhr) return;
+		listing = null;
+		if (xhr.status != 200) {
+			failed(xhr, xhr.statusText);
+			return;
+		}
+		consume(true);
+		$('#next').prop('disabled', !nextCursor);
+		document.title = (query.ancestor == undefined ? '' : query.ancestor) + ' ' + query.kind;
+	};
+	xhr.onerror = function() {
+		if (listing == xhr) listing = null;
+		failed(xhr, 'Network error');
+	};
+	xhr.send();
+}
+function addRow(row) {
+	for (var name in row) {
+		if (!columnSet[name]) {
+			columnSet[name] = true;
+			columns.push(name);
+		}
+	}
+	rows.push(row);
+}
+function scheduleRender() {
+	if (renderScheduled) return;
+	renderScheduled = true;
+	requestAnimationFrame(render);
+}
+/**
+ * Renders only rows in the visible part of #scroller, with spacers of the height of the rest.
+ */
+function render() {
+	renderScheduled = false;
+	var scroller = $('#scroller')[0];
+	var first = Math.max(0, Math.floor(scroller.scrollTop / ROW_HEIGHT) - OVERSCAN);
+	var last = Math.min(rows.length, Math.ceil((scroller.scrollTop + scroller.clientHeight) / ROW_HEIGHT) + OVERSCAN);
+
+	$('#count').text(rows.length + (nextCursor || listing ? '+' : ''));
+
+	if (columns.length != rendered.columns) {
 		var sb = [];
-		var columnsCount = Object.keys(columns).length;
-		if (!columnsCount) {
-			columns['no entities'] = 0;
+		if (!columns.length) {
+			sb.push('<th>' + (listing ? 'loading...' : 'no entities') + '</th>');
 		}
-//		sb.push('<th><input type="checkbox" onchange="$(\'[name=row]\').attr(\'checked\', this.checked);"/></th>');
-		Object.keys(columns).forEach(function(column) {
-			sb.push('<th>' + column + '</th>');
+		columns.forEach(function(name) {
+			sb.push('<th>' + name.escapeHTML() + '</th>');
 		});
-		var thead = $('#table > thead');
-		thead.html(sb.join());
-		sb = [];
-		matrix.forEach(function(row) {
-			sb.push('<tr>');
-//			sb.push('<td><input type="checkbox" name="row" value="' + row[0].value.escapeHTML() + '"/></td>');
-			for (var i = 0; i < columnsCount; i++) {
-				if (row[i]) {
-					sb.push('\t<td title="' + row[i].type + '">' + row[i].value.escapeHTML() + '</td>');
-				} else {
-					sb.push('\t<td></td>');
-				}
+		$('#table > thead').html('<tr>' + sb.join('') + '</tr>');
+	}
+
+	var bottom = (rows.length - last) * ROW_HEIGHT;
+	if (first == rendered.first && last == rendered.last && columns.length == rendered.columns) {
+		// Only more rows below the window came.
+		$('#table > tbody > tr.spacer:last > td').css('height', bottom + 'px');
+		return;
+	}
+
+	var sb = [];
+	sb.push(spacer(first * ROW_HEIGHT));
+	for (var r = first; r < last; r++) {
+		var row = rows[r];
+		sb.push('<tr>');
+		for (var i = 0; i < columns.length; i++) {
+			var cell = row[columns[i]];
+			if (cell) {
+				sb.push('<td title="' + cell.type + '">' + cell.value.escapeHTML() + '</td>');
+			} else {
+				sb.push('<td></td>');
 			}
-			sb.push('</tr>');
-		});
-		var tbody = $('#table > tbody');
-		tbody.html(sb.join());
+		}
+		sb.push('</tr>');
+	}
+	sb.push(spacer(bottom));
+	$('#table > tbody').html(sb.join(''));
 
-		$('#count').text(matrix.length);
-		if (matrix.length == query.limit) {
-			$('#count').text($('#count').text() + "+");
+	rendered = {first: first, last: last, columns: columns.length};
+}
+function spacer(height) {
+	return '<tr class="spacer"><td colspan="' + Math.max(1, columns.length) + '" style="height: ' + height + 'px"></td></tr>';
+}
+function failed(xhr, errorThrown) {
+	if (xhr.status == 403) {
+		var loginUrl = xhr.getResponseHeader('X-Login-URL');
+		if (loginUrl != null) {
+			location.href = loginUrl;
+			return;
 		}
-	});
+	}
+	document.title = 'error';
+	alert(xhr.responseText || errorThrown);
 }
 function delete_() {
 	var query = getValidatedQuery();
@@ -135,17 +244,23 @@ function delete_() {
 			method: 'DELETE'
 	}).done(function(data, textStatus, jqXHR) {
 		refresh();
-		alert('Deleted ' + data + ' entities.');
+		var message = 'Deleted ' + data.deleted + ' entities in ' + data.millis + 'ms ('
+				+ Math.round(data.perSecond) + '/s).';
+		if (data.failed) message += ' Failed: ' + data.failed + '.';
+		alert(message);
 	});
 }
 function count() {
 	var query = getValidatedQuery();
 	if (!query) return;
 	query.count = true;
+	query.mode = $('#countMode').val();
 	$.get(ROOT + '/entity/count', $.param(query, false))
 	.done(function(data, textStatus, jqXHR) {
-		var plus = count == query.limit ? '+' : '';
-		$('#count').text(data + plus);
+		var text = data.count;
+		if (data.lowerBound) text += '+';
+		if (data.mode == 'APPROXIMATE') text = '~' + text + ' (as of ' + data.asOf + ')';
+		$('#count').text(text);
 	});
 }
 function addFilterInput() {
@@ -173,6 +288,9 @@ $(function() {
 			alert(errorThrown);
 		}
 	});
+	$('#scroller').scroll(scheduleRender);
+	$(window).resize(scheduleRender);
 	refresh();
 	refreshKinds();
+	$('#kind').change(refreshProperties);
 });
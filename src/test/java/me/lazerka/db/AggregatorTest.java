@@ -0,0 +1,58 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import org.testng.annotations.Test;
+
+import java.util.Date;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class AggregatorTest {
+	@Test
+	public void compareByTypeFirst() {
+		assertTrue(Aggregator.compareValues(null, 1L) < 0);
+		assertTrue(Aggregator.compareValues(1000L, true) < 0);
+		assertTrue(Aggregator.compareValues(true, "a") < 0);
+		assertTrue(Aggregator.compareValues("z", 0.5) < 0);
+	}
+
+	@Test
+	public void compareInt64Forms() {
+		// Dates are stored as microseconds.
+		Date date = new Date(1);
+		assertTrue(Aggregator.compareValues(999L, date) < 0);
+		assertEquals(Aggregator.compareValues(1000L, date), 0);
+		assertTrue(Aggregator.compareValues(date, 1001L) < 0);
+
+		assertTrue(Aggregator.compareValues(new Rating(50), 51) < 0);
+		assertTrue(Aggregator.compareValues(new Rating(50), 49L) > 0);
+		assertEquals(Aggregator.compareValues(new Rating(50), 50L), 0);
+	}
+
+	@Test
+	public void compareStringForms() {
+		assertTrue(Aggregator.compareValues("b@example.com", new Email("c@example.com")) < 0);
+		assertTrue(Aggregator.compareValues(new Link("http://b"), "http://a") > 0);
+		assertEquals(Aggregator.compareValues(new Email("a"), new Link("a")), 0);
+		assertTrue(Aggregator.compareValues(new ShortBlob(new byte[] {(byte) 0xff}), "a") > 0);
+	}
+
+	@Test
+	public void compareStringsInUtf8Order() {
+		// U+FFFF is greater than U+1F600 in UTF-16, but less in UTF-8.
+		String bmp = "\uFFFF";
+		String supplementary = new String(Character.toChars(0x1f600));
+		assertTrue(bmp.compareTo(supplementary) > 0);
+
+		assertTrue(Aggregator.compareValues(bmp, supplementary) < 0);
+		assertTrue(Aggregator.compareValues(supplementary + "a", supplementary + "b") < 0);
+		assertTrue(Aggregator.compareValues("a", "ab") < 0);
+	}
+}
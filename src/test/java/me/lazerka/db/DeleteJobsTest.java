@@ -0,0 +1,150 @@
+package me.lazerka.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tasks are not run by the local queue, but one by one by the test, so that it can retry them.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class DeleteJobsTest {
+	private static final List<String> NONE = ImmutableList.of();
+	/** Two shards, of 3 and 2 entities. */
+	private static final List<String> OR = ImmutableList.of("tag = STRING(a)", "tag = STRING(b)");
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(),
+			new LocalMemcacheServiceTestConfig(),
+			new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+	private DatastoreService datastore;
+	private LocalTaskQueue taskQueue;
+	private DeleteJobs deleteJobs;
+
+	@BeforeMethod
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		AsyncDatastoreService asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService();
+		taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+
+		for(int i = 1; i <= 5; i++) {
+			Entity entity = new Entity("Kind", i);
+			entity.setProperty("tag", i % 2 == 1 ? "a" : "b");
+			datastore.put(entity);
+		}
+
+		ObjectMapper objectMapper = new ObjectMapper();
+		deleteJobs = new DeleteJobs(
+				datastore,
+				asyncDatastore,
+				QueueFactory.getDefaultQueue(),
+				new QueryPlans(),
+				new FetchSizer(512 * 1024, 200),
+				new EntityCounter(datastore, new Parallel()),
+				new ResultCache(MemcacheServiceFactory.getMemcacheService(), objectMapper, objectMapper, 60, 1024),
+				new MetadataCatalog(datastore, 60),
+				new Metrics(),
+				objectMapper,
+				// A slice deletes one entity.
+				0);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void multiSlice() {
+		String id = deleteJobs.start("Kind", "", NONE, OR, 8).job.id;
+		assertEquals(tasks().size(), 2);
+
+		while (!tasks().isEmpty()) {
+			run(tasks().get(0));
+		}
+
+		DeleteJobs.Progress progress = deleteJobs.progress(id);
+		assertTrue(progress.done);
+		assertEquals(progress.shardsDone, 2);
+		assertEquals(progress.deleted, 5);
+		assertEquals(progress.failed, 0);
+		assertEquals(progress.slices, 5);
+		assertEquals(remaining(), 0);
+	}
+
+	@Test
+	public void retriedSlice() {
+		String id = deleteJobs.start("Kind", "", NONE, ImmutableList.of("tag = STRING(a)"), 8).job.id;
+
+		TaskStateInfo first = tasks().get(0);
+		run(first);
+		// As if it failed after saving its slice, and queue retries it.
+		run(first);
+		assertEquals(tasks().size(), 1);
+
+		TaskStateInfo second = tasks().get(0);
+		assertEquals(second.getTaskName(), id + "-0-1");
+		run(second);
+		// Stale, as shard is at slice 2 now.
+		run(second);
+		run(first);
+		assertEquals(tasks().size(), 1);
+
+		DeleteJobs.Progress progress = deleteJobs.progress(id);
+		assertEquals(progress.deleted, 2);
+		assertEquals(progress.slices, 2);
+
+		while (!tasks().isEmpty()) {
+			run(tasks().get(0));
+		}
+		progress = deleteJobs.progress(id);
+		assertTrue(progress.done);
+		assertEquals(progress.deleted, 3);
+		assertEquals(progress.slices, 3);
+	}
+
+	private List<TaskStateInfo> tasks() {
+		return taskQueue.getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName()).getTaskInfo();
+	}
+
+	/**
+	 * Runs task as {@link DBResource#runJob} would, and removes it from the queue, if it's still there.
+	 */
+	private void run(TaskStateInfo task) {
+		Map<String, String> params = Splitter.on('&').withKeyValueSeparator('=').split(task.getBody());
+		String url = task.getUrl();
+		String id = url.substring("/db/jobs/".length(), url.length() - "/run".length());
+		deleteJobs.run(id, Integer.parseInt(params.get("shard")), Integer.parseInt(params.get("slices")));
+		taskQueue.deleteTask(QueueFactory.getDefaultQueue().getQueueName(), task.getTaskName());
+	}
+
+	private int remaining() {
+		return datastore.prepare(new Query("Kind").setKeysOnly()).countEntities(withDefaults());
+	}
+}
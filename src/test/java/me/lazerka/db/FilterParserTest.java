@@ -0,0 +1,97 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class FilterParserTest {
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	@BeforeMethod
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void parseKeyPath() {
+		Key parent = KeyFactory.createKey("Parent", 123);
+		Key expected = KeyFactory.createKey(parent, "Kind", "name");
+
+		assertEquals(FilterParser.parseKey("Parent(123)/Kind(\"name\")"), expected);
+		assertEquals(FilterParser.parseKey(expected.toString()), expected);
+		assertEquals(FilterParser.parseKey(KeyFactory.keyToString(expected)), expected);
+	}
+
+	@Test
+	public void parseKeyNameWithQuoteParenthesis() {
+		Key expected = KeyFactory.createKey(KeyFactory.createKey("A", "x\")y"), "B", "\")");
+
+		assertEquals(FilterParser.parseKey("A(\"x\")y\")/B(\"\")\")"), expected);
+	}
+
+	@Test
+	public void parseKeyNamespace() {
+		Key key = FilterParser.parseKey("!ns:A(1)/B(\"c\")");
+
+		assertEquals(key.getNamespace(), "ns");
+		assertEquals(key.getParent().getNamespace(), "ns");
+		assertEquals(key.getName(), "c");
+		assertNull(NamespaceManager.get());
+	}
+
+	@Test
+	public void parseKeyEmptyNamespace() {
+		assertEquals(FilterParser.parseKey("!:A(1)"), KeyFactory.createKey("A", 1));
+	}
+
+	@Test
+	public void parseKeyMaxId() {
+		assertEquals(FilterParser.parseKey("A(9223372036854775807)"), KeyFactory.createKey("A", Long.MAX_VALUE));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyOverflow() {
+		FilterParser.parseKey("A(9223372036854775808)");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyEmptyName() {
+		FilterParser.parseKey("A(\"\")");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyZeroId() {
+		FilterParser.parseKey("A(0)");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyEmptyKind() {
+		FilterParser.parseKey("(1)");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyInvalidNamespace() {
+		FilterParser.parseKey("!n s:A(1)");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void parseKeyUnterminatedName() {
+		FilterParser.parseKey("A(\"name)");
+	}
+}
@@ -0,0 +1,141 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Branches are run one by one on local datastore, which orders each of them same as datastore does.
+ *
+ * @author Dzmitry Lazerka
+ */
+public class MergingIteratorTest {
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private DatastoreService datastore;
+
+	@BeforeMethod
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+
+		put(1, "a", 30L);
+		put(2, "b", 20L);
+		put(3, "a", 10L);
+		put(4, "b", ImmutableList.of(5L, 40L));
+		put(5, ImmutableList.of("a", "b"), 25L);
+		put(6, "a", ImmutableList.of(1L, 35L));
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	private void put(long id, Object tag, Object n) {
+		Entity entity = new Entity("Kind", id);
+		entity.setProperty("tag", tag);
+		entity.setProperty("n", n);
+		datastore.put(entity);
+	}
+
+	@Test
+	public void byInequalityProperty() {
+		Filter greater = new FilterPredicate("n", FilterOperator.GREATER_THAN, 8L);
+
+		List<Long> ids = merge(tagged("a", greater, null), tagged("b", greater, null));
+
+		// 3 by 10, 2 by 20, 5 by 25 once, 1 by 30, 6 by 35, 4 by 40.
+		assertEquals(ids, ImmutableList.of(3L, 2L, 5L, 1L, 6L, 4L));
+	}
+
+	@Test
+	public void byLeastMatchingValue() {
+		Filter greater = new FilterPredicate("n", FilterOperator.GREATER_THAN_OR_EQUAL, 5L);
+
+		List<Long> ids = merge(tagged("a", greater, null), tagged("b", greater, null));
+
+		// 4 by 5 rather than 40, 6 by 35 rather than 1, which doesn't match.
+		assertEquals(ids, ImmutableList.of(4L, 3L, 2L, 5L, 1L, 6L));
+	}
+
+	@Test
+	public void byGreatestValueIfDescending() {
+		List<Long> ids = merge(
+				tagged("a", null, SortDirection.DESCENDING),
+				tagged("b", null, SortDirection.DESCENDING));
+
+		// 4 by 40, 6 by 35.
+		assertEquals(ids, ImmutableList.of(4L, 6L, 1L, 5L, 2L, 3L));
+	}
+
+	@Test
+	public void byKeyWithoutDuplicates() {
+		List<Long> ids = merge(tagged("b", null, null), tagged("a", null, null));
+
+		assertEquals(ids, ImmutableList.of(1L, 2L, 3L, 4L, 5L, 6L));
+	}
+
+	@Test
+	public void upToLimit() {
+		List<Query> queries = ImmutableList.of(tagged("a", null, null), tagged("b", null, null));
+		MergingIterator iterator = new MergingIterator(queries, run(queries), 3);
+
+		assertEquals(ids(iterator), ImmutableList.of(1L, 2L, 3L));
+	}
+
+	private Query tagged(String tag, @Nullable Filter inequality, @Nullable SortDirection direction) {
+		Filter filter = new FilterPredicate("tag", FilterOperator.EQUAL, tag);
+		if (inequality != null) {
+			filter = CompositeFilterOperator.and(filter, inequality);
+		}
+		Query query = new Query("Kind").setFilter(filter);
+		if (direction != null) {
+			query.addSort("n", direction);
+		}
+		return query;
+	}
+
+	private List<Long> merge(Query... queries) {
+		List<Query> list = ImmutableList.copyOf(queries);
+		return ids(new MergingIterator(list, run(list), Integer.MAX_VALUE));
+	}
+
+	private List<QueryResultIterator<Entity>> run(List<Query> queries) {
+		List<QueryResultIterator<Entity>> result = Lists.newArrayList();
+		for(Query query : queries) {
+			result.add(datastore.prepare(query).asQueryResultIterator(FetchOptions.Builder.withDefaults()));
+		}
+		return result;
+	}
+
+	private static List<Long> ids(MergingIterator iterator) {
+		List<Long> result = Lists.newArrayList();
+		while (iterator.hasNext()) {
+			Key key = iterator.next().getKey();
+			result.add(key.getId());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,116 @@
+package me.lazerka.db;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Date;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Dzmitry Lazerka
+ */
+public class MetadataCatalogTest {
+	private static final Date CREATED = new Date(1400000000000L);
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private DatastoreService datastore;
+	private MetadataCatalog catalog;
+
+	@BeforeMethod
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+
+		Entity entity = new Entity("Kind", 1);
+		entity.setProperty("created", CREATED);
+		entity.setProperty("age", 30L);
+		entity.setProperty("name", "value");
+		entity.setProperty("email", new Email("a@example.com"));
+		entity.setProperty("score", 1.5);
+		datastore.put(entity);
+
+		catalog = new MetadataCatalog(datastore, 60);
+		catalog.refresh();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void valueClassOfInt64IsUnknown() {
+		assertNull(MetadataCatalog.valueClass(ImmutableList.of("INT64")));
+		assertEquals(MetadataCatalog.valueClass(ImmutableList.of("DOUBLE", "NULL")), Double.class);
+	}
+
+	@Test
+	public void valueClassOfStringIsUnknown() {
+		assertNull(MetadataCatalog.valueClass(ImmutableList.of("STRING")));
+	}
+
+	/**
+	 * Projected Date would come as Long of microseconds.
+	 */
+	@Test
+	public void projectDate() {
+		Query q = new Query("Kind");
+		assertFalse(catalog.project(q, ImmutableSet.of("created")));
+		assertTrue(q.getProjections().isEmpty());
+
+		Entity entity = datastore.prepare(q).asSingleEntity();
+		assertEquals(entity.getProperty("created"), CREATED);
+	}
+
+	@Test
+	public void projectDateWithString() {
+		Query q = new Query("Kind");
+		assertFalse(catalog.project(q, ImmutableSet.of("name", "created")));
+		assertTrue(q.getProjections().isEmpty());
+	}
+
+	/**
+	 * Projected Email would come as String.
+	 */
+	@Test
+	public void projectEmail() {
+		Query q = new Query("Kind");
+		assertFalse(catalog.project(q, ImmutableSet.of("email")));
+		assertTrue(q.getProjections().isEmpty());
+
+		Entity entity = datastore.prepare(q).asSingleEntity();
+		assertEquals(entity.getProperty("email"), new Email("a@example.com"));
+	}
+
+	@Test
+	public void projectDouble() {
+		Query q = new Query("Kind");
+		assertTrue(catalog.project(q, ImmutableSet.of("score")));
+
+		Entity entity = datastore.prepare(q).asSingleEntity();
+		assertEquals(entity.getProperty("score"), 1.5);
+		assertFalse(entity.hasProperty("name"));
+	}
+
+	@Test
+	public void projectKey() {
+		Query q = new Query("Kind");
+		assertTrue(catalog.project(q, ImmutableSet.of(Entity.KEY_RESERVED_PROPERTY)));
+		assertTrue(q.isKeysOnly());
+	}
+}